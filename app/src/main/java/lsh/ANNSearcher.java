@@ -4,18 +4,34 @@ import java.util.Arrays;
 import java.util.List;
 import java.util.HashSet;
 import java.util.LinkedList;
+import java.util.PriorityQueue;
 import java.util.Set;
 import java.util.Map.Entry;
 import java.util.HashMap;
 import java.util.Collection;
 
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
 public class ANNSearcher {
 
+    private static final Logger logger = LogManager.getLogger(ANNSearcher.class);
+
     private List<Searchable> searchables;
     private float[][] corpusMatrix;
     private Integer[][] neighborsTable;
     private float[] weightedVoteFreq;
     private int[] voteFreq;
+    private int noProbes;
+    // Copy of the corpus in which points of the same leaf are stored next to each other, if reordered. The
+    // rows are stored in a single array, row i is internalCorpus[i*dimensions] ... internalCorpus[(i+1)*dimensions-1].
+    // Searchables return external ids, candidates are scored on the reordered copy using internal ids.
+    private float[] internalCorpus;
+    private int dimensions;
+    private int[] internalToExternal;
+    private int[] externalToInternal;
+    // Set once corpusMatrix is a copy owned by this searcher, which may be changed by insert and delete
+    private boolean ownsCorpus;
 
     public ANNSearcher(List<Searchable> searchables, float[][] corpusMatrix) {
         this.searchables = searchables;
@@ -23,12 +39,116 @@ public class ANNSearcher {
         this.neighborsTable = null;
         this.weightedVoteFreq = new float[corpusMatrix.length];
         this.voteFreq = new int[corpusMatrix.length];
+        this.noProbes = 0;
     }
 
     public float[][] getCorpusMatrix() {
         return corpusMatrix;
     }
 
+    public void setNoProbes(int noProbes) {
+        this.noProbes = noProbes;
+    }
+
+    public boolean hasBoundedBuckets() {
+        // True if any table of the searcher truncates its buckets to a maximum bucket size
+        for (Searchable searchable : searchables) {
+            if (searchable instanceof HashTable && ((HashTable) searchable).getMaxBucketSize() > 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public long getNoTruncatedSearches() {
+        // Number of searches in which a table returned a bucket cut to its maximum bucket size
+        long noTruncatedSearches = 0;
+        for (Searchable searchable : searchables) {
+            if (searchable instanceof HashTable) {
+                noTruncatedSearches += ((HashTable) searchable).getNoTruncatedSearches();
+            }
+        }
+        return noTruncatedSearches;
+    }
+
+    public void reorderCorpus() {
+        // Only the leaves of a tree give a suitable order. Other searchables keep the original corpus.
+        if (searchables.isEmpty() || !(searchables.get(0) instanceof Tree)) {
+            logger.warn("The corpus is only reordered for trees, candidates are scored on the original corpus");
+            return;
+        }
+
+        // Rows are copied in leaf order of the first tree into a single array
+        int[] leafOrder = ((Tree) searchables.get(0)).getLeafOrder();
+        if (leafOrder.length == 0) {
+            return;
+        }
+        internalToExternal = leafOrder;
+        externalToInternal = new int[corpusMatrix.length];
+        dimensions = corpusMatrix[internalToExternal[0]].length;
+        internalCorpus = new float[internalToExternal.length * dimensions];
+        for (int internal = 0; internal < internalToExternal.length; internal++) {
+            int external = internalToExternal[internal];
+            externalToInternal[external] = internal;
+            System.arraycopy(corpusMatrix[external], 0, internalCorpus, internal * dimensions, dimensions);
+        }
+    }
+
+    public void insert(int cIndex, float[] xVec) {
+        // Adds xVec to the corpus as point cIndex, replacing the point if it exists
+        checkUpdatable();
+        if (cIndex < corpusMatrix.length && corpusMatrix[cIndex] != null) {
+            // Remove the old entries by routing the old vector, so no tombstone has to be compacted away
+            for (Searchable searchable : searchables) {
+                ((Tree) searchable).remove(cIndex, corpusMatrix[cIndex]);
+            }
+        }
+
+        // Rows of ids that have not been inserted are null
+        if (cIndex >= corpusMatrix.length) {
+            int capacity = Math.max(cIndex + 1, 2 * corpusMatrix.length);
+            corpusMatrix = Arrays.copyOf(corpusMatrix, capacity);
+            weightedVoteFreq = Arrays.copyOf(weightedVoteFreq, capacity);
+            voteFreq = Arrays.copyOf(voteFreq, capacity);
+        }
+        corpusMatrix[cIndex] = xVec;
+
+        for (Searchable searchable : searchables) {
+            ((Tree) searchable).insert(cIndex, corpusMatrix);
+        }
+    }
+
+    public void delete(int cIndex) {
+        checkUpdatable();
+        if (cIndex >= corpusMatrix.length || corpusMatrix[cIndex] == null) {
+            return;
+        }
+
+        for (Searchable searchable : searchables) {
+            ((Tree) searchable).delete(cIndex);
+        }
+        corpusMatrix[cIndex] = null;
+    }
+
+    private void checkUpdatable() {
+        for (Searchable searchable : searchables) {
+            if (!(searchable instanceof Tree)) {
+                throw new UnsupportedOperationException("Inserting and deleting points is only supported for trees");
+            }
+        }
+
+        // The corpus may be shared with the factory, so it is copied before it is changed
+        if (!ownsCorpus) {
+            corpusMatrix = Arrays.copyOf(corpusMatrix, corpusMatrix.length);
+            ownsCorpus = true;
+        }
+
+        // The reordered copy of the corpus no longer matches
+        internalCorpus = null;
+        internalToExternal = null;
+        externalToInternal = null;
+    }
+
     public void setSecondaryIndex(int[][] neighborsTable, int k) {
         
         this.neighborsTable = new Integer[neighborsTable.length][];
@@ -52,7 +172,7 @@ public class ANNSearcher {
         
         for (Searchable searchable : searchables) {
             // get partitionset of q for each 
-            Collection<Integer> searchResult = searchable.search(qVec);
+            Collection<Integer> searchResult = search(searchable, qVec);
             if (searchResult == null) {
                 continue;
             }
@@ -61,7 +181,7 @@ public class ANNSearcher {
         }
         
         CSize[0] = candidateSet.size();
-        return Utils.bruteForceKNN(corpusMatrix, qVec, candidateSet, k);
+        return rerank(qVec, candidateSet, k);
     }
 
     public int[] votingSearch(int[] CSize, float[] qVec, int k, int threshold) {
@@ -71,7 +191,7 @@ public class ANNSearcher {
         List<Integer> candidateSet = new LinkedList<>();
 
         for (Searchable searchable : searchables) {
-            Collection<Integer> searchResult = searchable.search(qVec);
+            Collection<Integer> searchResult = search(searchable, qVec);
             if (searchResult == null) {
                 continue;
             }
@@ -85,7 +205,7 @@ public class ANNSearcher {
         }
 
         CSize[0] = candidateSet.size();
-        return Utils.bruteForceKNN(corpusMatrix, qVec, candidateSet, k);
+        return rerank(qVec, candidateSet, k);
     }
 
     public int[] naturalClassifierSearch(int CSize[], float[] qVec, int k, float threshold) {
@@ -96,7 +216,7 @@ public class ANNSearcher {
         Set<Integer> candidateSet = new HashSet<>();
         
         for (Searchable searchable : searchables) {
-            Collection<Integer> searchResult = searchable.search(qVec);
+            Collection<Integer> searchResult = search(searchable, qVec);
             if (searchResult == null) {
                 continue;
             }
@@ -105,6 +225,10 @@ public class ANNSearcher {
 
             for (Integer cIndex : searchResult) {
                 // Count votes of neighbors in partition
+                // Points inserted after the secondary index was built have no neighbors
+                if (cIndex >= neighborsTable.length) {
+                    continue;
+                }
                 for (Integer neighborOfcIndex : neighborsTable[cIndex]) {
                     // Increment vote and check if above threshold
                     if ((weightedVoteFreq[neighborOfcIndex] += voteWeight) >= threshold) {
@@ -116,7 +240,7 @@ public class ANNSearcher {
 
         CSize[0] = candidateSet.size();
         // Brute force candidate set
-        return Utils.bruteForceKNN(corpusMatrix, qVec, candidateSet, k);
+        return rerank(qVec, candidateSet, k);
 
     }
 
@@ -127,13 +251,17 @@ public class ANNSearcher {
         List<Integer> candidateSet = new LinkedList<>();
         
         for (Searchable searchable : searchables) {
-            Collection<Integer> searchResult = searchable.search(qVec);
+            Collection<Integer> searchResult = search(searchable, qVec);
             if (searchResult == null) {
                 continue;
             }
 
             for (Integer cIndex : searchResult) {
                 // Count votes of neighbors in partition
+                // Points inserted after the secondary index was built have no neighbors
+                if (cIndex >= neighborsTable.length) {
+                    continue;
+                }
                 for (Integer neighborOfcIndex : neighborsTable[cIndex]) {
                     if (++voteFreq[neighborOfcIndex] == threshold) {
                         candidateSet.add(neighborOfcIndex);
@@ -143,7 +271,7 @@ public class ANNSearcher {
         }
 
         CSize[0] = candidateSet.size();
-        return Utils.bruteForceKNN(corpusMatrix, qVec, candidateSet, k);
+        return rerank(qVec, candidateSet, k);
         
     }
 
@@ -154,7 +282,7 @@ public class ANNSearcher {
         List<Integer> nonZeroVotes = new LinkedList<>();
 
         for (Searchable searchable : searchables) {
-            Collection<Integer> searchResult = searchable.search(qVec);
+            Collection<Integer> searchResult = search(searchable, qVec);
             if (searchResult == null) {
                 continue;
             }
@@ -163,6 +291,10 @@ public class ANNSearcher {
 
             for (Integer cIndex : searchResult) {
                 // Count votes of neighbors in partition
+                // Points inserted after the secondary index was built have no neighbors
+                if (cIndex >= neighborsTable.length) {
+                    continue;
+                }
                 for (Integer neighborOfcIndex : neighborsTable[cIndex]) {
                     // Increment vote
                     if (weightedVoteFreq[neighborOfcIndex] == 0.0f) {
@@ -176,7 +308,7 @@ public class ANNSearcher {
         // If max candidatesetsize not reached, all elements are part of C
         if (nonZeroVotes.size() < candidateSetSize) {
             CSize[0] = nonZeroVotes.size();
-            return Utils.bruteForceKNN(corpusMatrix, qVec, nonZeroVotes, k);
+            return rerank(qVec, nonZeroVotes, k);
         }
         
         // Convert all vote entries into an array which is compatible with quickSelect.
@@ -194,7 +326,65 @@ public class ANNSearcher {
         }
 
         CSize[0] = candidateSet.size();
-        return Utils.bruteForceKNN(corpusMatrix, qVec, candidateSet, k);
+        return rerank(qVec, candidateSet, k);
+    }
+
+    public int[] priorityTreeSearch(int[] CSize, float[] qVec, int k, int maxChecks) {
+
+        // Unexplored branches of all trees share a single queue, ordered by distance to the split boundary
+        PriorityQueue<Tree.Branch> branches = new PriorityQueue<>();
+        Set<Integer> candidateSet = new HashSet<>();
+
+        for (Searchable searchable : searchables) {
+            if (searchable instanceof Tree) {
+                branches.add(new Tree.Branch((Tree) searchable, 0, 0.0f));
+                continue;
+            }
+            // Searchables that are not trees only contribute the partition of q
+            Collection<Integer> searchResult = search(searchable, qVec);
+            if (searchResult != null) {
+                candidateSet.addAll(searchResult);
+            }
+        }
+
+        // The roots all have distance 0, so the leaf of q in every tree is visited first. Afterwards
+        // the closest unexplored branches of any tree are visited until maxChecks candidates are found.
+        while (!branches.isEmpty() && candidateSet.size() < maxChecks) {
+            Tree.Branch branch = branches.poll();
+            candidateSet.addAll(branch.getTree().descend(branch.getNode(), branch.getDistance(), qVec, branches));
+        }
+
+        CSize[0] = candidateSet.size();
+        return rerank(qVec, candidateSet, k);
+    }
+
+    private int[] rerank(float[] qVec, Collection<Integer> candidateSet, int k) {
+
+        if (internalCorpus == null) {
+            return Utils.bruteForceKNN(corpusMatrix, qVec, candidateSet, k);
+        }
+
+        // Score the candidates in the order they are stored in memory
+        int[] candidates = new int[candidateSet.size()];
+        int ctr = 0;
+        for (Integer cIndex : candidateSet) {
+            candidates[ctr++] = externalToInternal[cIndex];
+        }
+        Arrays.sort(candidates);
+
+        int[] kNeighbors = Utils.bruteForceKNN(internalCorpus, dimensions, qVec, candidates, k);
+        for (int i = 0; i < kNeighbors.length; i++) {
+            kNeighbors[i] = internalToExternal[kNeighbors[i]];
+        }
+        return kNeighbors;
+    }
+
+    private Collection<Integer> search(Searchable searchable, float[] qVec) {
+        // Probe additional buckets if the searchable supports it
+        if (noProbes > 0 && searchable instanceof MultiProbeSearchable) {
+            return ((MultiProbeSearchable) searchable).search(qVec, noProbes);
+        }
+        return searchable.search(qVec);
     }
 
     private void resetWeightedVotes() {
@@ -22,6 +22,7 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.LinkedList;
+import java.util.Random;
 import java.util.regex.*;
 
 // Logging
@@ -45,6 +46,10 @@ public class ANNSearcherFactory {
     private static String DATASETFILENAME;
     private static String DATASET;
     private static float[][] corpusMatrix;
+    // Hash functions of the i'th table or instance are generated from Utils.deriveSeed(SEED, i)
+    private static long SEED = new Random().nextLong();
+    // Number of points sampled to select the split of a tree node, 0 to use all points
+    private static int TREESAMPLESIZE = 0;
 
     // FOR JAR BUILD
     private static String DATASTRUCTUREDIRECTORY = "./datastructures";
@@ -55,11 +60,14 @@ public class ANNSearcherFactory {
 
     public static ANNSearcherFactory getInstance() {
         kryo.register(C2LSH.class, new JavaSerializer());
+        kryo.register(AngC2LSH.class, new JavaSerializer());
         kryo.register(RKDTree.class, new JavaSerializer());
         kryo.register(RPTree.class, new JavaSerializer());
+        kryo.register(HyperplaneTree.class, new JavaSerializer());
         kryo.register(HashTable.class, new JavaSerializer());
         kryo.register(AngHashTable.class, new JavaSerializer());
-        kryo.register(BinaryHash.class, new JavaSerializer());
+        kryo.register(CrossPolytopeHashTable.class, new JavaSerializer());
+        kryo.register(LSHForest.class, new JavaSerializer());
         kryo.register(Tree.class, new JavaSerializer());
         kryo.register(java.util.ArrayList.class, new JavaSerializer());
         kryo.register(int[][].class, new JavaSerializer());
@@ -87,11 +95,22 @@ public class ANNSearcherFactory {
     }
 
 
+    public void setSeed(long seed) {
+        SEED = seed;
+        logger.info("Set seed of ANNSearcherFactory to: " + seed);
+    }
+
+    public void setTreeSampleSize(int sampleSize) {
+        TREESAMPLESIZE = sampleSize;
+        logger.info("Set tree sample size of ANNSearcherFactory to: " + sampleSize);
+    }
+
+
     // ------------ Partition Tree ------------
 
-    private ANNSearcher getTreeSearcher(int maxLeafSize, int L, String type) throws FileNotFoundException {
+    private ANNSearcher getTreeSearcher(int maxLeafSize, int L, String type, float spillFraction) throws FileNotFoundException {
 
-        if (!type.equals("RP") && !type.equals("RKD")) {
+        if (!type.equals("RP") && !type.equals("RPSign") && !type.equals("RKD") && !type.equals("PCA") && !type.equals("TwoMeans")) {
             logger.error("Could not get Tree searcher: " + type + " is not a valid type.");
         }
 
@@ -102,15 +121,21 @@ public class ANNSearcherFactory {
         // float[][] corpusMatrix = getCorpusMatrix();
 
         List<Searchable> searchables;
-        File datastructure = getSuitableForest(maxLeafSize, L, type);
+        File datastructure = getSuitableForest(maxLeafSize, L, type, spillFraction);
 
         if (datastructure == null) {
             
-            searchables = searchableForest(maxLeafSize, L, corpusMatrix, type);
+            searchables = searchableForest(maxLeafSize, L, spillFraction, corpusMatrix, type);
             
             // Write searchables to disk
-            String fileName = String.format(type + "Tree_%1$d_%2$d.ser", maxLeafSize, L);
-            writeToDisk(searchables, DATASTRUCTUREDIRECTORY, fileName);
+            String fileName = String.format(type + "Tree_%1$d_%2$d", maxLeafSize, L);
+            if (spillFraction > 0.0f) {
+                fileName += String.format("_spill%f", spillFraction);
+            }
+            if (TREESAMPLESIZE > 0) {
+                fileName += String.format("_sample%d", TREESAMPLESIZE);
+            }
+            writeToDisk(searchables, DATASTRUCTUREDIRECTORY, fileName + ".ser");
         } else {
 
             searchables = (List<Searchable>) readFromDisk(DATASTRUCTUREDIRECTORY, datastructure);
@@ -122,20 +147,20 @@ public class ANNSearcherFactory {
         return new ANNSearcher(searchables, corpusMatrix);
     }
 
-    public ANNSearcher getNCTreeSearcher(int maxLeafSize, int L, String type, int k) throws FileNotFoundException {
+    public ANNSearcher getNCTreeSearcher(int maxLeafSize, int L, String type, int k, float spillFraction) throws FileNotFoundException {
 
-        ANNSearcher mySearcher = getTreeSearcher(maxLeafSize, L, type);
+        ANNSearcher mySearcher = getTreeSearcher(maxLeafSize, L, type, spillFraction);
         int[][] secondaryIndex = getSecondIndex(k);
         mySearcher.setSecondaryIndex(secondaryIndex, k);
         return mySearcher;
     }
 
-    private List<Searchable> searchableForest(int maxLeafSize, int L, float[][] corpusMatrix, String type) {
+    private List<Searchable> searchableForest(int maxLeafSize, int L, float spillFraction, float[][] corpusMatrix, String type) {
         logger.info("Started constructing searchable  forest: maxLeafSize = " + maxLeafSize + ", L = " +  L + ", type = "+ type);
 
         List<Searchable> searchables = new ArrayList<Searchable>(Collections.nCopies(L, null));
         ExecutorService pool = new ForkJoinPool();
-        Future<?> finished = pool.submit(new BuildForestTask(searchables, 0, L-1, pool, type, maxLeafSize, corpusMatrix));
+        Future<?> finished = pool.submit(new BuildForestTask(searchables, 0, L-1, pool, type, maxLeafSize, TREESAMPLESIZE, spillFraction, corpusMatrix));
         try {
             finished.get();
             BuildForestTask.resetCount();
@@ -151,7 +176,7 @@ public class ANNSearcherFactory {
 
     // ------------ CLASSIC LSH ------------
 
-    private ANNSearcher getLSHSearcher(int K, float r, int L) throws FileNotFoundException {
+    private ANNSearcher getLSHSearcher(int K, float r, int L, int maxBucketSize) throws FileNotFoundException {
 
         if (DATASETFILENAME == null) {
             throw new FileNotFoundException("No dataset specified.");
@@ -160,14 +185,17 @@ public class ANNSearcherFactory {
         // float[][] corpusMatrix = getCorpusMatrix();
 
         List<Searchable> searchables;
-        File datastructure = getSuitableLSH(K, r, L);
+        File datastructure = getSuitableLSH(K, r, L, maxBucketSize);
         
         if (datastructure == null) {
             // Create a new list of HashTables
-            searchables = searchableLSH(K, r, L, corpusMatrix);
+            searchables = searchableLSH(K, r, L, maxBucketSize, corpusMatrix);
 
             // Write searchables to disk
             String fileName = String.format("LSH_%1$d_%2$f_%3$d.ser", K, r, L);
+            if (maxBucketSize > 0) {
+                fileName = String.format("LSH_%1$d_%2$f_%3$d_split%4$d.ser", K, r, L, maxBucketSize);
+            }
             writeToDisk(searchables, DATASTRUCTUREDIRECTORY, fileName);
 
         } else {
@@ -181,22 +209,23 @@ public class ANNSearcherFactory {
         return new ANNSearcher(searchables, corpusMatrix);
     }
 
-    public ANNSearcher getNCLSHSearcher(int K, float r, int L, int k) throws FileNotFoundException {
+    public ANNSearcher getNCLSHSearcher(int K, float r, int L, int k, int noProbes, int maxBucketSize) throws FileNotFoundException {
 
-        ANNSearcher LSHSearcher = getLSHSearcher(K, r, L);
+        ANNSearcher LSHSearcher = getLSHSearcher(K, r, L, maxBucketSize);
         int[][] secondaryIndexMatrix = getSecondIndex(k);
         LSHSearcher.setSecondaryIndex(secondaryIndexMatrix, k);
+        LSHSearcher.setNoProbes(noProbes);
 
         return LSHSearcher;
     }   
 
-    private List<Searchable> searchableLSH(int K, float r, int L, float[][] corpusMatrix) {
+    private List<Searchable> searchableLSH(int K, float r, int L, int maxBucketSize, float[][] corpusMatrix) {
         
-        logger.info("Started constructing LSH: K = " + K + ", r = " + r + ", L = " + L);
+        logger.info("Started constructing LSH: K = " + K + ", r = " + r + ", L = " + L + ", maxBucketSize = " + maxBucketSize);
 
         List<Searchable> searchables = new ArrayList<Searchable>(Collections.nCopies(L, null));
         ExecutorService pool = new ForkJoinPool();
-        Future<?> finished = pool.submit(new BuildLSHTask(searchables, 0, L-1, pool, "", K, r, corpusMatrix));
+        Future<?> finished = pool.submit(new BuildLSHTask(searchables, 0, L-1, pool, "", K, 0, r, maxBucketSize, SEED, corpusMatrix));
         try {
             finished.get();
             BuildLSHTask.resetCount();
@@ -222,7 +251,7 @@ public class ANNSearcherFactory {
         // float[][] corpusMatrix = getCorpusMatrix();
 
         List<Searchable> searchables;
-        File datastructure = getSuitableAngLSH(K, L);
+        File datastructure = getSuitableAngLSH("Ang", K, L);
         
         if (datastructure == null) {
             // Create a new list of HashTables
@@ -243,11 +272,12 @@ public class ANNSearcherFactory {
         return new ANNSearcher(searchables, corpusMatrix);
     }
 
-    public ANNSearcher getAngNCLSHSearcher(int K, int L, int k) throws FileNotFoundException {
+    public ANNSearcher getAngNCLSHSearcher(int K, int L, int k, int noProbes) throws FileNotFoundException {
 
         ANNSearcher LSHSearcher = getAngLSHSearcher(K, L);
         int[][] secondaryIndexMatrix = getSecondIndex(k);
         LSHSearcher.setSecondaryIndex(secondaryIndexMatrix, k);
+        LSHSearcher.setNoProbes(noProbes);
 
         return LSHSearcher;
     }   
@@ -259,7 +289,7 @@ public class ANNSearcherFactory {
 
         List<Searchable> searchables = new ArrayList<Searchable>(Collections.nCopies(L, null));
         ExecutorService pool = new ForkJoinPool();
-        Future<?> finished = pool.submit(new BuildLSHTask(searchables, 0, L-1, pool, "", K, 0.0f, corpusMatrix));
+        Future<?> finished = pool.submit(new BuildLSHTask(searchables, 0, L-1, pool, "Ang", K, 0, 0.0f, 0, SEED, corpusMatrix));
         try {
             finished.get();
             BuildLSHTask.resetCount();
@@ -273,9 +303,134 @@ public class ANNSearcherFactory {
     }
     
 
+    // ------------ Cross-polytope LSH ------------
+
+    private ANNSearcher getCPLSHSearcher(int K, int L) throws FileNotFoundException {
+
+        if (DATASETFILENAME == null) {
+            throw new FileNotFoundException("No dataset specified.");
+        }
+
+        List<Searchable> searchables;
+        File datastructure = getSuitableAngLSH("CP", K, L);
+        
+        if (datastructure == null) {
+            // Create a new list of HashTables
+            searchables = searchableCPLSH(K, L, corpusMatrix);
+
+            // Write searchables to disk
+            String fileName = String.format("CPLSH_%1$d_%2$d.ser", K, L);
+            writeToDisk(searchables, DATASTRUCTUREDIRECTORY, fileName);
+
+        } else {
+            // Read searchables from disk and reduce size
+            searchables = (List<Searchable>) readFromDisk(DATASTRUCTUREDIRECTORY, datastructure);
+            if (searchables.size() > L) {
+                searchables = new LinkedList<>(searchables.subList(0, L));
+            }
+        }
+
+        return new ANNSearcher(searchables, corpusMatrix);
+    }
+
+    public ANNSearcher getCPNCLSHSearcher(int K, int L, int k) throws FileNotFoundException {
+
+        ANNSearcher LSHSearcher = getCPLSHSearcher(K, L);
+        int[][] secondaryIndexMatrix = getSecondIndex(k);
+        LSHSearcher.setSecondaryIndex(secondaryIndexMatrix, k);
+
+        return LSHSearcher;
+    }
+
+    private List<Searchable> searchableCPLSH(int K, int L, float[][] corpusMatrix) {
+        
+        logger.info("Started constructing CPLSH: K = " + K + ", L = " + L);
+
+        List<Searchable> searchables = new ArrayList<Searchable>(Collections.nCopies(L, null));
+        ExecutorService pool = new ForkJoinPool();
+        Future<?> finished = pool.submit(new BuildLSHTask(searchables, 0, L-1, pool, "CP", K, 0, 0.0f, 0, SEED, corpusMatrix));
+        try {
+            finished.get();
+            BuildLSHTask.resetCount();
+        } catch (ExecutionException | InterruptedException e) {
+            logger.error("Error constructing searchable LSH: K = " + K + ", L = " +  L + ", type = CPLSH");
+            System.exit(1);
+        }
+        pool.shutdown();
+        logger.info("Finished constructing CPLSH " + "K = " + K + ", L = " + L);
+        return searchables;
+    }
+    
+
+    // ------------ LSH Forest ------------
+
+    private ANNSearcher getLSHForestSearcher(int K, int minCandidates, int L) throws FileNotFoundException {
+
+        if (DATASETFILENAME == null) {
+            throw new FileNotFoundException("No dataset specified.");
+        }
+
+        List<Searchable> searchables;
+        File datastructure = getSuitableLSHForest(L);
+        
+        if (datastructure == null) {
+            // Create a new list of forests. Each one serves all prefix lengths K.
+            searchables = searchableLSHForest(L, corpusMatrix);
+
+            // Write searchables to disk
+            String fileName = String.format("LSHForest_%1$d.ser", L);
+            writeToDisk(searchables, DATASTRUCTUREDIRECTORY, fileName);
+
+        } else {
+            // Read searchables from disk and reduce size
+            searchables = (List<Searchable>) readFromDisk(DATASTRUCTUREDIRECTORY, datastructure);
+            if (searchables.size() > L) {
+                searchables = new LinkedList<>(searchables.subList(0, L));
+            }
+        }
+
+        // Prefix length and candidate count are query parameters
+        for (Searchable searchable : searchables) {
+            LSHForest forest = (LSHForest) searchable;
+            forest.setK(K);
+            forest.setMinCandidates(minCandidates);
+        }
+
+        return new ANNSearcher(searchables, corpusMatrix);
+    }
+
+    public ANNSearcher getNCLSHForestSearcher(int K, int minCandidates, int L, int k) throws FileNotFoundException {
+
+        ANNSearcher LSHSearcher = getLSHForestSearcher(K, minCandidates, L);
+        int[][] secondaryIndexMatrix = getSecondIndex(k);
+        LSHSearcher.setSecondaryIndex(secondaryIndexMatrix, k);
+
+        return LSHSearcher;
+    }
+
+    private List<Searchable> searchableLSHForest(int L, float[][] corpusMatrix) {
+        
+        logger.info("Started constructing LSHForest: L = " + L);
+
+        List<Searchable> searchables = new ArrayList<Searchable>(Collections.nCopies(L, null));
+        ExecutorService pool = new ForkJoinPool();
+        Future<?> finished = pool.submit(new BuildLSHTask(searchables, 0, L-1, pool, "Forest", LSHForest.MAXDEPTH, 0, 0.0f, 0, SEED, corpusMatrix));
+        try {
+            finished.get();
+            BuildLSHTask.resetCount();
+        } catch (ExecutionException | InterruptedException e) {
+            logger.error("Error constructing searchable LSH: L = " +  L + ", type = LSHForest");
+            System.exit(1);
+        }
+        pool.shutdown();
+        logger.info("Finished constructing LSHForest " + "L = " + L);
+        return searchables;
+    }
+    
+
     /* ----------- Collision Counting LSH ----------- */
 
-    public ANNSearcher getC2LSHSearcher(int K, int minSize, int threshold, int L, boolean angular) throws FileNotFoundException {
+    public ANNSearcher getC2LSHSearcher(int K, int minSize, int threshold, int L, int noVerified, int maxRadius, long maxCollisions) throws FileNotFoundException {
 
         if (DATASETFILENAME == null) {
             throw new FileNotFoundException("No dataset specified.");
@@ -284,20 +439,15 @@ public class ANNSearcherFactory {
         // float[][] corpusMatrix = getCorpusMatrix();
 
         List<Searchable> searchables;
-        File datastructure = getSuitableC2LSH(K, L, angular);
+        File datastructure = getSuitableC2LSH(K, L);
         
         if (datastructure == null) {
             // Create a new list of HashTables
-            searchables = searchableC2LSH(K, minSize, threshold, angular, L, corpusMatrix);
+            searchables = searchableC2LSH(K, minSize, threshold, L, corpusMatrix);
 
-            // Write searchables to disk
-            String fileName;
-            if (angular) {
-                fileName = String.format("AngC2LSH_%1$d_%2$d.ser", K, L);
-            } else {
-                fileName = String.format("C2LSH_%1$d_%2$d.ser", K, L);
-            }
-            
+            // Write searchables to disk. Files written before the buckets were stored as bid-sorted arrays have
+            // no _v2 suffix, they cannot be read and are ignored by getSuitableC2LSH.
+            String fileName = String.format("C2LSH_%1$d_%2$d_v2.ser", K, L);
             writeToDisk(searchables, DATASTRUCTUREDIRECTORY, fileName);
 
         } else {
@@ -310,35 +460,115 @@ public class ANNSearcherFactory {
                 C2LSH myC2LSH = (C2LSH) searchable;
                 myC2LSH.setMinSize(minSize);
                 myC2LSH.setThreshold(threshold);
+                myC2LSH.setCorpusMatrix(corpusMatrix);
             }
         }
+        for (Searchable searchable : searchables) {
+            ((C2LSH) searchable).setTermination(noVerified, maxRadius, maxCollisions);
+        }
 
         return new ANNSearcher(searchables, corpusMatrix);
     }
 
-    public ANNSearcher getNCC2LSHSearcher(int K, int minSize, int threshold, int L, int k, boolean angular) throws FileNotFoundException {
+    public ANNSearcher getNCC2LSHSearcher(int K, int minSize, int threshold, int L, int k, int noVerified, int maxRadius, long maxCollisions) throws FileNotFoundException {
 
-        ANNSearcher C2LSHSearcher = getC2LSHSearcher(K, minSize, threshold, L, angular);
+        ANNSearcher C2LSHSearcher = getC2LSHSearcher(K, minSize, threshold, L, noVerified, maxRadius, maxCollisions);
         int[][] secondaryIndexMatrix = getSecondIndex(k);
         C2LSHSearcher.setSecondaryIndex(secondaryIndexMatrix, k);
 
         return C2LSHSearcher;
     }   
 
-    private List<Searchable> searchableC2LSH(int K, int minSize, int threshold, boolean angular, int L, float[][] corpusMatrix) {
+    private List<Searchable> searchableC2LSH(int K, int minSize, int threshold, int L, float[][] corpusMatrix) {
         logger.info("Started constructing C2LSH: K = " + K + ", minSize = " + minSize + ", threshold = " + threshold + ", L = " +  L);
-        int d = corpusMatrix[0].length;
 
-        List<Searchable> searchables = new ArrayList<Searchable>(L);
-        for (int l = 0; l < L; l++) {
-            Searchable hashTable = new C2LSH(d, K, minSize, threshold, angular);
-            hashTable.fit(corpusMatrix);
-            searchables.add(l, hashTable);
-            logger.trace("Constructed C2LSH " + (l+1) + "/" + L);
+        List<Searchable> searchables = new ArrayList<Searchable>(Collections.nCopies(L, null));
+        ExecutorService pool = new ForkJoinPool();
+        Future<?> finished = pool.submit(new BuildLSHTask(searchables, 0, L-1, pool, "C2LSH", K, 0, 0.0f, 0, SEED, corpusMatrix));
+        try {
+            finished.get();
+            BuildLSHTask.resetCount();
+        } catch (ExecutionException | InterruptedException e) {
+            logger.error("Error constructing searchable C2LSH: K = " + K + ", L = " +  L);
+            System.exit(1);
+        }
+        pool.shutdown();
+        for (Searchable searchable : searchables) {
+            C2LSH myC2LSH = (C2LSH) searchable;
+            myC2LSH.setMinSize(minSize);
+            myC2LSH.setThreshold(threshold);
         }
         logger.info("Finished constructing C2LSH: K = " + K + ", minSize = " + minSize + ", threshold = " + threshold + ", L = " +  L);
         return searchables;    
     }
+
+    public ANNSearcher getAngC2LSHSearcher(int K, int bits, int minSize, int threshold, int L, int maxRadius, long maxCollisions) throws FileNotFoundException {
+
+        if (DATASETFILENAME == null) {
+            throw new FileNotFoundException("No dataset specified.");
+        }
+
+        List<Searchable> searchables;
+        File datastructure = getSuitableAngC2LSH(K, bits, L);
+
+        if (datastructure == null) {
+            // Create a new list of collision counting indexes
+            searchables = searchableAngC2LSH(K, bits, minSize, threshold, L, corpusMatrix);
+
+            // Write searchables to disk
+            String fileName = String.format("AngC2LSH_%1$d_%2$d_%3$d.ser", K, bits, L);
+            writeToDisk(searchables, DATASTRUCTUREDIRECTORY, fileName);
+
+        } else {
+            // Read searchables from disk and reduce size
+            searchables = (List<Searchable>) readFromDisk(DATASTRUCTUREDIRECTORY, datastructure);
+            if (searchables.size() > L) {
+                searchables = new LinkedList<>(searchables.subList(0, L));
+            }
+            for (Searchable searchable : searchables) {
+                AngC2LSH myAngC2LSH = (AngC2LSH) searchable;
+                myAngC2LSH.setMinSize(minSize);
+                myAngC2LSH.setThreshold(threshold);
+            }
+        }
+        for (Searchable searchable : searchables) {
+            ((AngC2LSH) searchable).setTermination(maxRadius, maxCollisions);
+        }
+
+        return new ANNSearcher(searchables, corpusMatrix);
+    }
+
+    public ANNSearcher getAngNCC2LSHSearcher(int K, int bits, int minSize, int threshold, int L, int k, int maxRadius, long maxCollisions) throws FileNotFoundException {
+
+        ANNSearcher angC2LSHSearcher = getAngC2LSHSearcher(K, bits, minSize, threshold, L, maxRadius, maxCollisions);
+        int[][] secondaryIndexMatrix = getSecondIndex(k);
+        angC2LSHSearcher.setSecondaryIndex(secondaryIndexMatrix, k);
+
+        return angC2LSHSearcher;
+    }
+
+    private List<Searchable> searchableAngC2LSH(int K, int bits, int minSize, int threshold, int L, float[][] corpusMatrix) {
+        logger.info("Started constructing AngC2LSH: K = " + K + ", bits = " + bits + ", minSize = " + minSize + ", threshold = " + threshold + ", L = " +  L);
+
+        List<Searchable> searchables = new ArrayList<Searchable>(Collections.nCopies(L, null));
+        ExecutorService pool = new ForkJoinPool();
+        Future<?> finished = pool.submit(new BuildLSHTask(searchables, 0, L-1, pool, "AngC2LSH", K, bits, 0.0f, 0, SEED, corpusMatrix));
+        try {
+            finished.get();
+            BuildLSHTask.resetCount();
+        } catch (ExecutionException | InterruptedException e) {
+            logger.error("Error constructing searchable AngC2LSH: K = " + K + ", bits = " + bits + ", L = " +  L);
+            System.exit(1);
+        }
+        pool.shutdown();
+        for (Searchable searchable : searchables) {
+            AngC2LSH myAngC2LSH = (AngC2LSH) searchable;
+            myAngC2LSH.setMinSize(minSize);
+            myAngC2LSH.setThreshold(threshold);
+        }
+        logger.info("Finished constructing AngC2LSH: K = " + K + ", bits = " + bits + ", minSize = " + minSize + ", threshold = " + threshold + ", L = " +  L);
+        return searchables;
+    }
     /* ----------- IO Methods ----------- */
 
     private void writeToDisk(Object object, String directory, String fileName) {
@@ -366,14 +596,14 @@ public class ANNSearcherFactory {
         }
     }
 
-    private File getSuitableForest(int maxLeafSize, int L, String type) {
+    private File getSuitableForest(int maxLeafSize, int L, String type, float spillFraction) {
         File directory = new File(DATASTRUCTUREDIRECTORY);
         File[] files = directory.listFiles();
         
         // To iterate over alphabetically order, thus taking smallest suitable first.
         Arrays.sort(files);
 
-        Pattern pattern = Pattern.compile(type + "Tree_(\\d+)_(\\d+).ser");
+        Pattern pattern = Pattern.compile(type + "Tree_(\\d+)_(\\d+)(_spill(\\d+.\\d+))?(_sample(\\d+))?.ser");
 
         for (File file : files) {
             String fileName = file.getName();
@@ -382,6 +612,18 @@ public class ANNSearcherFactory {
                 continue;
             }
 
+            // Spill trees are only used for the same spill fraction
+            float fileSpillFraction = match.group(4) == null ? 0.0f : Float.parseFloat(match.group(4));
+            if (fileSpillFraction != spillFraction) {
+                continue;
+            }
+
+            // Trees whose splits were computed from a sample are only used for the same sample size
+            int fileSampleSize = match.group(6) == null ? 0 : Integer.parseInt(match.group(6));
+            if (fileSampleSize != TREESAMPLESIZE) {
+                continue;
+            }
+
             if (Integer.parseInt(match.group(2)) < L) {
                 continue;
             }
@@ -391,14 +633,14 @@ public class ANNSearcherFactory {
         return null;
     }
 
-    private File getSuitableLSH(int K, float r, int L) {
+    private File getSuitableLSH(int K, float r, int L, int maxBucketSize) {
         File directory = new File(DATASTRUCTUREDIRECTORY);
         File[] files = directory.listFiles();
 
         // To iterate over alphabetically order, thus taking smallest suitable first.
         Arrays.sort(files);
 
-        Pattern pattern = Pattern.compile("LSH_(\\d+)_(\\d+.\\d+)_(\\d+).ser");
+        Pattern pattern = Pattern.compile("LSH_(\\d+)_(\\d+.\\d+)_(\\d+)(_split(\\d+))?.ser");
 
         for (File file : files) {
             String fileName = file.getName();
@@ -407,6 +649,12 @@ public class ANNSearcherFactory {
                 continue;
             }
 
+            // Tables must have been built with the same bucket size limit
+            int fileMaxBucketSize = match.group(5) == null ? 0 : Integer.parseInt(match.group(5));
+            if (fileMaxBucketSize != maxBucketSize) {
+                continue;
+            }
+
             if (Integer.parseInt(match.group(3)) < L) {
                 continue;
             }
@@ -416,14 +664,14 @@ public class ANNSearcherFactory {
  
     }
 
-    private File getSuitableAngLSH(int K, int L) {
+    private File getSuitableAngLSH(String type, int K, int L) {
         File directory = new File(DATASTRUCTUREDIRECTORY);
         File[] files = directory.listFiles();
 
         // To iterate over alphabetically order, thus taking smallest suitable first.
         Arrays.sort(files);
 
-        Pattern pattern = Pattern.compile("AngLSH_(\\d+)_(\\d+).ser");
+        Pattern pattern = Pattern.compile(type + "LSH_(\\d+)_(\\d+).ser");
 
         for (File file : files) {
             String fileName = file.getName();
@@ -441,20 +689,34 @@ public class ANNSearcherFactory {
  
     }
 
-    private File getSuitableC2LSH(int K, int L, boolean angular) {
+    private File getSuitableLSHForest(int L) {
         File directory = new File(DATASTRUCTUREDIRECTORY);
         File[] files = directory.listFiles();
 
         // To iterate over alphabetically order, thus taking smallest suitable first.
         Arrays.sort(files);
 
-        Pattern pattern;
-        if (angular) {
-            pattern = Pattern.compile("AngC2LSH_(\\d+)_(\\d+).ser");
-        } else {
-            pattern = Pattern.compile("C2LSH_(\\d+)_(\\d+).ser");
+        Pattern pattern = Pattern.compile("LSHForest_(\\d+).ser");
+
+        for (File file : files) {
+            String fileName = file.getName();
+            Matcher match = pattern.matcher(fileName);
+            if (!match.matches() || Integer.parseInt(match.group(1)) < L) {
+                continue;
+            }
+            return file;
         }
-        
+        return null;
+    }
+
+    private File getSuitableC2LSH(int K, int L) {
+        File directory = new File(DATASTRUCTUREDIRECTORY);
+        File[] files = directory.listFiles();
+
+        // To iterate over alphabetically order, thus taking smallest suitable first.
+        Arrays.sort(files);
+
+        Pattern pattern = Pattern.compile("C2LSH_(\\d+)_(\\d+)_v2.ser");
 
         for (File file : files) {
             String fileName = file.getName();
@@ -471,6 +733,30 @@ public class ANNSearcherFactory {
         return null;
     }
 
+    private File getSuitableAngC2LSH(int K, int bits, int L) {
+        File directory = new File(DATASTRUCTUREDIRECTORY);
+        File[] files = directory.listFiles();
+
+        // To iterate over alphabetically order, thus taking smallest suitable first.
+        Arrays.sort(files);
+
+        Pattern pattern = Pattern.compile("AngC2LSH_(\\d+)_(\\d+)_(\\d+).ser");
+
+        for (File file : files) {
+            String fileName = file.getName();
+            Matcher match = pattern.matcher(fileName);
+            if (!match.matches() || Integer.parseInt(match.group(1)) != K || Integer.parseInt(match.group(2)) != bits) {
+                continue;
+            }
+
+            if (Integer.parseInt(match.group(3)) < L) {
+                continue;
+            }
+            return file;
+        }
+        return null;
+    }
+
     private int[][] getSecondIndex(int k) {
         File secondaryIndex = getSecondIndexFile(k);
         int[][] secondaryIndexMatrix;
@@ -518,17 +804,21 @@ public class ANNSearcherFactory {
         private final ExecutorService pool;
         private final String type;
         private final int maxLeafSize;
+        private final int sampleSize;
+        private final float spillFraction;
         private final float[][] corpusMatrix;
         private final int threshold = 2;
         private final static AtomicInteger ctr = new AtomicInteger();
         private final Logger logger = LogManager.getLogger(this);
 
-        public BuildForestTask(List<Searchable> searchables, int low, int high, ExecutorService pool, String type, int maxLeafSize, float[][] corpusMatrix) {
+        public BuildForestTask(List<Searchable> searchables, int low, int high, ExecutorService pool, String type, int maxLeafSize, int sampleSize, float spillFraction, float[][] corpusMatrix) {
             this.searchables = searchables;
             this.low = low;
             this.high = high;
             this.pool = pool;
             this.maxLeafSize = maxLeafSize;
+            this.sampleSize = sampleSize;
+            this.spillFraction = spillFraction;
             this.type = type;
             this.corpusMatrix = corpusMatrix;
         }
@@ -542,12 +832,20 @@ public class ANNSearcherFactory {
             // Threshold reached, build trees in local thread
             if ((high-low) <= threshold) {
                 for (int i = low; i <= high; i++) {
-                    Searchable tree = null;
+                    Tree tree = null;
                     if (type.equals("RP")) {
                         tree = new RPTree(maxLeafSize);
+                    } else if (type.equals("RPSign")) {
+                        tree = new RPTree(maxLeafSize, true);
                     } else if (type.equals("RKD")) {
                         tree = new RKDTree(maxLeafSize);
+                    } else if (type.equals("PCA")) {
+                        tree = new HyperplaneTree(maxLeafSize, false);
+                    } else if (type.equals("TwoMeans")) {
+                        tree = new HyperplaneTree(maxLeafSize, true);
                     }
+                    tree.setSampleSize(sampleSize);
+                    tree.setSpillFraction(spillFraction);
                     tree.fit(corpusMatrix);
                     searchables.set(i, tree);
                     logger.trace("Constructed " + type + "-Tree: " + ctr.incrementAndGet());
@@ -555,8 +853,8 @@ public class ANNSearcherFactory {
             // Split task into subtasks
             } else {
                 int mid = low + (high-low)/2;
-                Future<?> f1 = pool.submit(new BuildForestTask(searchables, low, mid, pool, type, maxLeafSize, corpusMatrix));
-                Future<?> f2 = pool.submit(new BuildForestTask(searchables, mid+1, high, pool, type, maxLeafSize, corpusMatrix));
+                Future<?> f1 = pool.submit(new BuildForestTask(searchables, low, mid, pool, type, maxLeafSize, sampleSize, spillFraction, corpusMatrix));
+                Future<?> f2 = pool.submit(new BuildForestTask(searchables, mid+1, high, pool, type, maxLeafSize, sampleSize, spillFraction, corpusMatrix));
                 try {
                     f1.get();
                     f2.get();
@@ -578,19 +876,26 @@ public class ANNSearcherFactory {
         private final ExecutorService pool;
         private final String type;
         private final int K;
+        // Number of bits of each code of an AngC2LSH index
+        private final int bits;
         private final float r;
+        private final int maxBucketSize;
+        private final long seed;
         private final float[][] corpusMatrix;
         private final int threshold = 2;
         private final static AtomicInteger ctr = new AtomicInteger();
         private final Logger logger = LogManager.getLogger(this);
 
-        public BuildLSHTask(List<Searchable> searchables, int low, int high, ExecutorService pool, String type, int K, float r, float[][] corpusMatrix) {
+        public BuildLSHTask(List<Searchable> searchables, int low, int high, ExecutorService pool, String type, int K, int bits, float r, int maxBucketSize, long seed, float[][] corpusMatrix) {
             this.searchables = searchables;
             this.low = low;
             this.high = high;
             this.pool = pool;
             this.K = K;
+            this.bits = bits;
             this.r = r;
+            this.maxBucketSize = maxBucketSize;
+            this.seed = seed;
             this.type = type;
             this.corpusMatrix = corpusMatrix;
         }
@@ -605,10 +910,24 @@ public class ANNSearcherFactory {
             if ((high-low) <= threshold) {
                 for (int i = low; i <= high; i++) {
                     Searchable lsh = null;
+                    // Each table is generated from its own seed, so it can be rebuilt identically
+                    long tableSeed = Utils.deriveSeed(seed, i);
                     if (type.equals("Ang")) {
-                        lsh = new AngHashTable(corpusMatrix[0].length, K);
+                        lsh = new AngHashTable(corpusMatrix[0].length, K, tableSeed);
+                    } else if (type.equals("CP")) {
+                        lsh = new CrossPolytopeHashTable(corpusMatrix[0].length, K, tableSeed);
+                    } else if (type.equals("Forest")) {
+                        lsh = new LSHForest(corpusMatrix[0].length, tableSeed);
+                    } else if (type.equals("C2LSH")) {
+                        // minSize and threshold are set by the factory, as for indexes read from disk.
+                        // Each index builds its hash functions as fork-join tasks in the same pool.
+                        lsh = new C2LSH(corpusMatrix[0].length, K, 0, 0, false, tableSeed);
+                    } else if (type.equals("AngC2LSH")) {
+                        lsh = new AngC2LSH(corpusMatrix[0].length, K, bits, 0, 0, tableSeed);
                     } else {
-                        lsh = new HashTable(corpusMatrix[0].length, K, r);
+                        HashTable hashTable = new HashTable(corpusMatrix[0].length, K, r, tableSeed);
+                        hashTable.setMaxBucketSize(maxBucketSize);
+                        lsh = hashTable;
                     }
                     lsh.fit(corpusMatrix);
                     searchables.set(i, lsh);
@@ -617,8 +936,8 @@ public class ANNSearcherFactory {
             // Split task into subtasks
             } else {
                 int mid = low + (high-low)/2;
-                Future<?> f1 = pool.submit(new BuildLSHTask(searchables, low, mid, pool, type, K, r, corpusMatrix));
-                Future<?> f2 = pool.submit(new BuildLSHTask(searchables, mid+1, high, pool, type, K, r, corpusMatrix));
+                Future<?> f1 = pool.submit(new BuildLSHTask(searchables, low, mid, pool, type, K, bits, r, maxBucketSize, seed, corpusMatrix));
+                Future<?> f2 = pool.submit(new BuildLSHTask(searchables, mid+1, high, pool, type, K, bits, r, maxBucketSize, seed, corpusMatrix));
                 try {
                     f1.get();
                     f2.get();
@@ -0,0 +1,207 @@
+package lsh;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinTask;
+
+public class AngC2LSH implements Searchable, Serializable {
+
+    // Largest number of bits of a single code, the buckets of a function are direct-addressed by code
+    private static final int MAXBITS = 16;
+    // Number of points hashed by a single fork-join task
+    private static final int CHUNKSIZE = 4096;
+
+    // K hash functions, each the signs of the projections onto bits random hyperplanes. Only the seed is serialized.
+    private ProjectionMatrix projectionMatrix;
+    private int K;
+    private int bits;
+    // For each hash function, the points with code b are points[offsets[b]] ... points[offsets[b+1]-1]
+    int[][] offsets;
+    int[][] points;
+    private int minSize;
+    private int threshold;
+    private int corpusMatrixSize;
+    // Largest number of flipped bits of the probed codes, 1 or 2
+    private int maxRadius = 2;
+    // Search stops once this many collisions have been counted, 0 for no limit
+    private long maxCollisions;
+
+    public AngC2LSH(int d, int K, int bits, int minSize, int threshold, long seed) {
+        if (bits < 1 || bits > MAXBITS) {
+            throw new IllegalArgumentException("Number of bits per code must be in [1, " + MAXBITS + "], was " + bits);
+        }
+        this.K = K;
+        this.bits = bits;
+        this.minSize = minSize;
+        this.threshold = threshold;
+        projectionMatrix = new ProjectionMatrix(K * bits, d, seed);
+    }
+
+    public AngC2LSH(int d, int K, int bits, int minSize, int threshold) {
+        this(d, K, bits, minSize, threshold, new Random().nextLong());
+    }
+
+    public void setMinSize(int minSize) {
+        this.minSize = minSize;
+    }
+
+    public void setThreshold(int threshold) {
+        this.threshold = threshold;
+    }
+
+    public void setTermination(int maxRadius, long maxCollisions) {
+        // A maxRadius of 0 keeps the default of probing codes with up to 2 flipped bits
+        if (maxRadius < 0 || maxRadius > 2) {
+            throw new IllegalArgumentException("Number of flipped bits of the probed codes must be 1 or 2, was " + maxRadius);
+        }
+        this.maxRadius = maxRadius > 0 ? maxRadius : 2;
+        this.maxCollisions = maxCollisions;
+    }
+
+    public void fit(float[][] corpusMatrix) {
+        this.corpusMatrixSize = corpusMatrix.length;
+
+        // Codes of all points for all hash functions, computed with a single projection of each point.
+        // Chunks of points, and then the buckets of each hash function, are built as parallel fork-join tasks.
+        int[][] codes = new int[K][corpusMatrix.length];
+        List<ForkJoinTask<?>> tasks = new ArrayList<>();
+        for (int low = 0; low < corpusMatrix.length; low += CHUNKSIZE) {
+            final int from = low;
+            final int to = Math.min(low + CHUNKSIZE, corpusMatrix.length);
+            tasks.add(ForkJoinTask.adapt(() -> hashChunk(corpusMatrix, codes, from, to)));
+        }
+        ForkJoinTask.invokeAll(tasks);
+
+        offsets = new int[K][];
+        points = new int[K][];
+        tasks.clear();
+        for (int i = 0; i < K; i++) {
+            final int function = i;
+            tasks.add(ForkJoinTask.adapt(() -> fill(codes[function], function)));
+        }
+        ForkJoinTask.invokeAll(tasks);
+    }
+
+    void hashChunk(float[][] corpusMatrix, int[][] codes, int from, int to) {
+        float[] projections = new float[K * bits];
+        for (int cIndex = from; cIndex < to; cIndex++) {
+            projectionMatrix.project(corpusMatrix[cIndex], projections);
+            for (int i = 0; i < K; i++) {
+                codes[i][cIndex] = getCode(projections, i);
+            }
+        }
+    }
+
+    private void fill(int[] codes, int function) {
+
+        // Count the size of each bucket, then place each point in its bucket in ascending order
+        int[] functionOffsets = new int[(1 << bits) + 1];
+        for (int code : codes) {
+            functionOffsets[code + 1]++;
+        }
+        for (int b = 0; b < 1 << bits; b++) {
+            functionOffsets[b + 1] += functionOffsets[b];
+        }
+        int[] functionPoints = new int[codes.length];
+        int[] nextFree = Arrays.copyOf(functionOffsets, 1 << bits);
+        for (int cIndex = 0; cIndex < codes.length; cIndex++) {
+            functionPoints[nextFree[codes[cIndex]]++] = cIndex;
+        }
+        offsets[function] = functionOffsets;
+        points[function] = functionPoints;
+    }
+
+    int getCode(float[] projections, int function) {
+        // Fold the sign bits of the projections of a function into its code
+        int code = 0;
+        int offset = function * bits;
+        for (int j = 0; j < bits; j++) {
+            code = (code << 1) | (projections[offset + j] < 0 ? 0 : 1);
+        }
+        return code;
+    }
+
+    public Collection<Integer> search(float[] qVec) {
+
+        // Count frequency of corpusPoints in the counter of this thread, which is reset when the search ends
+        CollisionCounter counter = CollisionCounter.get(corpusMatrixSize);
+        try {
+            return countCollisions(qVec, counter);
+        } finally {
+            counter.reset();
+        }
+    }
+
+    private Collection<Integer> countCollisions(float[] qVec, CollisionCounter counter) {
+
+        float[] projections = new float[K * bits];
+        projectionMatrix.project(qVec, projections);
+
+        // For each function the code of qVec, and the masks of the codes to probe in order. Bits of the
+        // hyperplanes closest to qVec are the most likely to differ for its neighbors, and are flipped first.
+        int[] codes = new int[K];
+        int[][] probeMasks = new int[K][];
+        for (int i = 0; i < K; i++) {
+            codes[i] = getCode(projections, i);
+            probeMasks[i] = probeMasks(flipOrder(projections, i), maxRadius);
+        }
+
+        // Probe the code of qVec, then codes with a single flipped bit, then with two flipped bits, counting
+        // the collisions of all functions at each step. As in C2LSH, the probed neighborhood of qVec grows
+        // until enough points have collided with it often enough.
+        for (int step = 0; step < probeMasks[0].length; step++) {
+            for (int i = 0; i < K; i++) {
+                int code = codes[i] ^ probeMasks[i][step];
+                counter.count(points[i], offsets[i][code], offsets[i][code + 1], threshold);
+            }
+            // Check if candidateset is large enough, or the collision budget is spent
+            if (counter.getNoCandidates() >= minSize || (maxCollisions > 0 && counter.getNoCollisions() >= maxCollisions)) {
+                return counter.getCandidates();
+            }
+        }
+        return counter.getCandidates();
+    }
+
+    static int[] probeMasks(int[] flipOrder, int maxRadius) {
+        // Masks of the probed codes: none, each bit of flipOrder, and then each pair of bits, adding bits in
+        // the order of flipOrder, i.e. (0,1), (0,2), (1,2), (0,3) ... of the positions in flipOrder
+        int bits = flipOrder.length;
+        int noProbes = 1 + (maxRadius >= 1 ? bits : 0) + (maxRadius >= 2 ? bits * (bits - 1) / 2 : 0);
+        int[] masks = new int[noProbes];
+        int ctr = 1;
+        for (int j = 0; maxRadius >= 1 && j < bits; j++) {
+            masks[ctr++] = flipOrder[j];
+        }
+        for (int second = 1; maxRadius >= 2 && second < bits; second++) {
+            for (int first = 0; first < second; first++) {
+                masks[ctr++] = flipOrder[first] ^ flipOrder[second];
+            }
+        }
+        return masks;
+    }
+
+    int[] flipOrder(float[] projections, int function) {
+        // Masks of the bits of a function, sorted by the margin of qVec to their hyperplanes
+        int offset = function * bits;
+        int[] masks = new int[bits];
+        float[] margins = new float[bits];
+        for (int j = 0; j < bits; j++) {
+            float margin = Math.abs(projections[offset + j]);
+            int mask = 1 << (bits - 1 - j);
+            int position = j;
+            while (position > 0 && margins[position - 1] > margin) {
+                margins[position] = margins[position - 1];
+                masks[position] = masks[position - 1];
+                position--;
+            }
+            margins[position] = margin;
+            masks[position] = mask;
+        }
+        return masks;
+    }
+
+}
@@ -1,63 +1,94 @@
 package lsh;
 
+import java.util.Arrays;
 import java.util.Collection;
-import java.util.HashMap;
-import java.util.LinkedList;
-import java.util.List;
-import java.util.Map;
 import java.io.Serializable;
 import java.util.Random;
 
-public class AngHashTable implements Searchable, Serializable {
-    
-    private BinaryHash[] hashFunctions;
-    private Map<Long, List<Integer>> hashIndex;
+public class AngHashTable implements MultiProbeSearchable, Serializable {
+
+    private ProjectionMatrix projectionMatrix;
+    private BucketIndex hashIndex;
     private int K;
 
-    public AngHashTable(int d, int K) {
+    public AngHashTable(int d, int K, long seed) {
         this.K = K;
-        hashIndex = new HashMap<>();
-        hashFunctions = new BinaryHash[K];
-        for (int i = 0; i < K; i++) {
-            hashFunctions[i] = new BinaryHash(d);
-        }
+        // K random hyperplanes, one for each binary hash function. Only the seed is serialized.
+        projectionMatrix = new ProjectionMatrix(K, d, seed);
     }
 
-    public void fit(float[][] corpusMatrix) {
+    public AngHashTable(int d, int K) {
+        this(d, K, new Random().nextLong());
+    }
 
-        // Hash each individual corpus point using all hashfunctions
-        for (int cIndex = 0; cIndex < corpusMatrix.length; cIndex++) {
-            float[] cVec = corpusMatrix[cIndex];
+    public void fit(float[][] corpusMatrix) {
 
-            long bin = getBin(cVec);
+        // Hash each individual corpus point using all hashfunctions, in parallel chunks
+        long[] bins = Utils.hashCorpusParallel(corpusMatrix, K, this::getBin);
 
-            // Add index to partition
-            List<Integer> partition = hashIndex.get(bin);
-            if (partition == null) {
-                // Create new set of points if partition isn't stored yet
-                partition = new LinkedList<>();
-                partition.add(cIndex);
-                hashIndex.put(bin, partition);
-                continue;
-            }
-            partition.add(cIndex);
+        // Freeze the partitions into a compact bucket index. Keys of few bits compared
+        // to the size of the corpus are dense enough to be direct-addressed.
+        if (BucketIndex.isDirectAddressable(K, corpusMatrix.length)) {
+            hashIndex = new BucketIndex(bins, 1 << K);
+        } else {
+            hashIndex = new BucketIndex(bins);
         }
     }
 
 
     public Collection<Integer> search(float[] qVec) {
-        long bin = getBin(qVec);
-        return hashIndex.get(bin);
+        long bin = getBin(qVec, new float[K]);
+        return hashIndex.getBucket(bin);
     }
 
-    private long getBin(float[] vec) {
+    public Collection<Integer> search(float[] qVec, int noProbes) {
 
-        // Find the hashValue of hashing vec with each individual hash function {1,...,k}
+        // Find the hash values of qVec and the margin to each hyperplane
         int[] hashValues = new int[K];
+        Margin[] margins = new Margin[K];
+        float[] projections = new float[K];
+        projectionMatrix.project(qVec, projections);
         for (int i = 0; i < K; i++) {
-            hashValues[i] = hashFunctions[i].hash(vec);
+            hashValues[i] = projections[i] < 0 ? 0 : 1;
+            margins[i] = new Margin(i, Math.abs(projections[i]));
         }
+        // Bits of hyperplanes closest to qVec are the most likely to differ for its neighbors
+        Arrays.sort(margins);
 
+        long bin = referenceHash(hashValues);
+        long[] bins = new long[noProbes + 1];
+        bins[0] = bin;
+        int noBins = 1;
+
+        // Flip single bits first
+        for (int i = 0; i < K && noBins <= noProbes; i++) {
+            bins[noBins++] = bin ^ bitMask(margins[i].getFunction());
+        }
+        // Then flip pairs of bits, adding hyperplanes in order of increasing margin
+        for (int j = 1; j < K && noBins <= noProbes; j++) {
+            for (int i = 0; i < j && noBins <= noProbes; i++) {
+                bins[noBins++] = bin ^ bitMask(margins[i].getFunction()) ^ bitMask(margins[j].getFunction());
+            }
+        }
+
+        return hashIndex.getBuckets(bins, noBins);
+    }
+
+    private long bitMask(int function) {
+        // The first hash function is the most significant bit of the key
+        return 1L << (K - 1 - function);
+    }
+
+    private long getBin(float[] vec, float[] projections) {
+
+        // Project vec onto the hyperplanes of all hash functions {1,...,k} in one pass
+        projectionMatrix.project(vec, projections);
+
+        // Fold the hash values into a single key the same way as the probed bins
+        int[] hashValues = new int[K];
+        for (int i = 0; i < K; i++) {
+            hashValues[i] = projections[i] < 0 ? 0 : 1;
+        }
         return referenceHash(hashValues);
     }
 
@@ -71,6 +102,29 @@ public class AngHashTable implements Searchable, Serializable {
 
     }
 
-    
+    static class Margin implements Comparable<Margin> {
+
+        private int function;
+        private float margin;
+
+        public Margin(int function, float margin) {
+            this.function = function;
+            this.margin = margin;
+        }
+
+        public int getFunction() {
+            return function;
+        }
+
+        public float getMargin() {
+            return margin;
+        }
+
+        public int compareTo(Margin that) {
+            if (this.margin < that.getMargin()) return -1;
+            if (this.margin > that.getMargin()) return 1;
+            return 0;
+        }
+    }
 
 }
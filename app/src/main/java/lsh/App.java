@@ -85,6 +85,16 @@ public class App {
         }
 
         factory.setDataset(configProperties.getProperty("dataset"), train);
+
+        // Optional seed, making hash functions reproducible across runs and machines
+        if (configProperties.getProperty("seed") != null) {
+            factory.setSeed(Long.parseLong(getProperty("seed")));
+        }
+
+        // Optional number of points sampled to select the split of a tree node
+        if (configProperties.getProperty("treeSampleSize") != null) {
+            factory.setTreeSampleSize(Integer.parseInt(getProperty("treeSampleSize")));
+        }
     }
 
     private void runBenchmarks() {
@@ -114,6 +124,11 @@ public class App {
                 continue;
             }
 
+            // Optionally store the corpus in leaf order of the first tree, for cache-local scoring of candidates
+            if (Boolean.parseBoolean(configProperties.getProperty("reorderCorpus", "false").trim())) {
+                searcher.reorderCorpus();
+            }
+
             // Benchmark searches
             for (String searchStrategyArgsList : searchStrategyArgs) {
                 String[] strategyArgs = getArgs(searchStrategyArgsList);
@@ -128,6 +143,7 @@ public class App {
                     continue;
                 }
 
+                long noTruncatedSearches = searcher.getNoTruncatedSearches();
                 MicroBenchmark.Results results = null;
                 switch (searchStrategy) {
                     case "lookupSearch":
@@ -145,6 +161,9 @@ public class App {
                     case "naturalClassifierSearchSetSize":
                         results = benchmark.benchmark(searcher, test, train, searchStrategy, metric, Integer.parseInt(strategyArgs[0]), Integer.parseInt(strategyArgs[1]));
                         break;
+                    case "priorityTreeSearch":
+                        results = benchmark.benchmark(searcher, test, train, searchStrategy, metric, Integer.parseInt(strategyArgs[0]), Integer.parseInt(strategyArgs[1]));
+                        break;
                     case "bruteForceSearch":
                         results = benchmark.benchmark(searcher, test, train, searchStrategy, metric, Integer.parseInt(strategyArgs[0]));
                         break;
@@ -154,6 +173,9 @@ public class App {
                 }
                 System.out.println("\n" + datastructure + " " + Arrays.toString(args) + " - " + searchStrategy + " " + Arrays.toString(strategyArgs));
                 printStats(results);
+                if (searcher.hasBoundedBuckets()) {
+                    System.out.printf("%-25s %s%n", "Truncated buckets:", searcher.getNoTruncatedSearches() - noTruncatedSearches);
+                }
                 writeResults(results, datastructure, args, searchStrategy, strategyArgs);
             }
         }
@@ -165,17 +187,32 @@ public class App {
         try {
             switch (datastructure) {
                 case "RKDTree":
-                    return factory.getNCTreeSearcher(Integer.parseInt(args[0]), Integer.parseInt(args[1]), "RKD", Integer.parseInt(args[2]));
+                    return factory.getNCTreeSearcher(Integer.parseInt(args[0]), Integer.parseInt(args[1]), "RKD", Integer.parseInt(args[2]), getOptionalArg(args, 3, 0.0f));
                 case "RPTree":
-                    return factory.getNCTreeSearcher(Integer.parseInt(args[0]), Integer.parseInt(args[1]), "RP", Integer.parseInt(args[2]));
+                    return factory.getNCTreeSearcher(Integer.parseInt(args[0]), Integer.parseInt(args[1]), "RP", Integer.parseInt(args[2]), getOptionalArg(args, 3, 0.0f));
+                case "RPSignTree":
+                    return factory.getNCTreeSearcher(Integer.parseInt(args[0]), Integer.parseInt(args[1]), "RPSign", Integer.parseInt(args[2]), getOptionalArg(args, 3, 0.0f));
+                case "PCATree":
+                    return factory.getNCTreeSearcher(Integer.parseInt(args[0]), Integer.parseInt(args[1]), "PCA", Integer.parseInt(args[2]), getOptionalArg(args, 3, 0.0f));
+                case "TwoMeansTree":
+                    return factory.getNCTreeSearcher(Integer.parseInt(args[0]), Integer.parseInt(args[1]), "TwoMeans", Integer.parseInt(args[2]), getOptionalArg(args, 3, 0.0f));
                 case "LSH":
-                    return factory.getNCLSHSearcher(Integer.parseInt(args[0]), Float.parseFloat(args[1]), Integer.parseInt(args[2]), Integer.parseInt(args[3]));
+                    return factory.getNCLSHSearcher(Integer.parseInt(args[0]), Float.parseFloat(args[1]), Integer.parseInt(args[2]), Integer.parseInt(args[3]), getOptionalArg(args, 4, 0), getOptionalArg(args, 5, 0));
                 case "AngLSH":
-                    return factory.getAngNCLSHSearcher(Integer.parseInt(args[0]), Integer.parseInt(args[1]), Integer.parseInt(args[2]));
+                    return factory.getAngNCLSHSearcher(Integer.parseInt(args[0]), Integer.parseInt(args[1]), Integer.parseInt(args[2]), getOptionalArg(args, 3, 0));
+                case "CPLSH":
+                    return factory.getCPNCLSHSearcher(Integer.parseInt(args[0]), Integer.parseInt(args[1]), Integer.parseInt(args[2]));
+                case "LSHForest":
+                    return factory.getNCLSHForestSearcher(Integer.parseInt(args[0]), Integer.parseInt(args[1]), Integer.parseInt(args[2]), Integer.parseInt(args[3]));
                 case "C2LSH":
-                    return factory.getNCC2LSHSearcher(Integer.parseInt(args[0]), Integer.parseInt(args[1]),  Integer.parseInt(args[2]), Integer.parseInt(args[3]), Integer.parseInt(args[4]), false);
+                    return factory.getNCC2LSHSearcher(Integer.parseInt(args[0]), Integer.parseInt(args[1]),  Integer.parseInt(args[2]), Integer.parseInt(args[3]), Integer.parseInt(args[4]), getOptionalArg(args, 5, 0), getOptionalArg(args, 6, 0), getOptionalArg(args, 7, 0));
                 case "AngC2LSH":
-                    return factory.getNCC2LSHSearcher(Integer.parseInt(args[0]), Integer.parseInt(args[1]),  Integer.parseInt(args[2]), Integer.parseInt(args[3]), Integer.parseInt(args[4]), true);
+                    // Same layout as C2LSH, with [bits] appended. Candidates are not verified, so noVerified must be 0.
+                    if (getOptionalArg(args, 5, 0) != 0) {
+                        logger.error("AngC2LSH does not verify candidates, noVerified must be 0: " + Arrays.toString(args));
+                        return null;
+                    }
+                    return factory.getAngNCC2LSHSearcher(Integer.parseInt(args[0]), getOptionalArg(args, 8, 8), Integer.parseInt(args[1]),  Integer.parseInt(args[2]), Integer.parseInt(args[3]), Integer.parseInt(args[4]), getOptionalArg(args, 6, 0), getOptionalArg(args, 7, 0));
             }   
         } catch (FileNotFoundException e) {
             logger.error("Error getting datastructure: " + datastructure + "with arguments: " + Arrays.toString(args));
@@ -188,6 +225,20 @@ public class App {
         return argsString.trim().split(" +");
     }
 
+    private int getOptionalArg(String[] args, int index, int defaultValue) {
+        if (args.length <= index) {
+            return defaultValue;
+        }
+        return Integer.parseInt(args[index]);
+    }
+
+    private float getOptionalArg(String[] args, int index, float defaultValue) {
+        if (args.length <= index) {
+            return defaultValue;
+        }
+        return Float.parseFloat(args[index]);
+    }
+
     private String getProperty(String key) {
         return configProperties.getProperty(key).trim();
     }
@@ -0,0 +1,219 @@
+package lsh;
+
+import java.io.Serializable;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.RandomAccess;
+
+public class BucketIndex implements Serializable {
+
+    // Largest key size in bits for which keys may be used directly as bucket numbers
+    private static final int MAXDIRECTBITS = 20;
+    // A direct-addressed index has an offset for every possible key, so there may be at most this many keys per point
+    private static final int MAXDIRECTKEYSPERPOINT = 4;
+
+    // Compressed sparse row layout. The points of the bucket with key bucketKeys[i]
+    // are stored in pointIndices[offsets[i]] ... pointIndices[offsets[i+1]-1].
+    // If the index is direct-addressed, bucketKeys is null and the key itself is i.
+    private long[] bucketKeys;
+    private int[] offsets;
+    private int[] pointIndices;
+    private int noBuckets;
+
+    public BucketIndex(long[] bins) {
+
+        // Find the distinct keys in sorted order
+        long[] sortedBins = Arrays.copyOf(bins, bins.length);
+        Arrays.parallelSort(sortedBins);
+        int noKeys = 0;
+        for (int i = 0; i < sortedBins.length; i++) {
+            if (noKeys == 0 || sortedBins[i] != sortedBins[noKeys-1]) {
+                sortedBins[noKeys++] = sortedBins[i];
+            }
+        }
+        bucketKeys = Arrays.copyOf(sortedBins, noKeys);
+
+        int[] bucketOfPoint = new int[bins.length];
+        Arrays.parallelSetAll(bucketOfPoint, cIndex -> Arrays.binarySearch(bucketKeys, bins[cIndex]));
+        fill(bucketOfPoint, noKeys);
+    }
+
+    public BucketIndex(long[] bins, int noKeys) {
+
+        // Direct-addressed: all keys are in [0, noKeys) and are used as bucket numbers
+        bucketKeys = null;
+        int[] bucketOfPoint = new int[bins.length];
+        for (int cIndex = 0; cIndex < bins.length; cIndex++) {
+            if (bins[cIndex] < 0 || bins[cIndex] >= noKeys) {
+                throw new IllegalArgumentException("Key " + bins[cIndex] + " is outside the direct-addressed range [0, " + noKeys + ")");
+            }
+            bucketOfPoint[cIndex] = (int) bins[cIndex];
+        }
+        fill(bucketOfPoint, noKeys);
+    }
+
+    public static boolean isDirectAddressable(int keyBits, int noPoints) {
+        // Dense keys avoid sorting and binary search, sparse keys would waste memory on empty buckets
+        return keyBits <= MAXDIRECTBITS && (1L << keyBits) <= (long) MAXDIRECTKEYSPERPOINT * noPoints;
+    }
+
+    private void fill(int[] bucketOfPoint, int noKeys) {
+
+        // Count the size of each bucket
+        offsets = new int[noKeys + 1];
+        for (int cIndex = 0; cIndex < bucketOfPoint.length; cIndex++) {
+            offsets[bucketOfPoint[cIndex] + 1]++;
+        }
+        noBuckets = 0;
+        for (int i = 0; i < noKeys; i++) {
+            if (offsets[i + 1] > 0) {
+                noBuckets++;
+            }
+            offsets[i + 1] += offsets[i];
+        }
+
+        // Place each point in its bucket, keeping the points of a bucket in ascending order
+        pointIndices = new int[bucketOfPoint.length];
+        int[] nextFree = Arrays.copyOf(offsets, noKeys);
+        for (int cIndex = 0; cIndex < bucketOfPoint.length; cIndex++) {
+            pointIndices[nextFree[bucketOfPoint[cIndex]]++] = cIndex;
+        }
+    }
+
+    private int findBucket(long key) {
+        // Returns -1 if no points have the given key
+        int bucket;
+        if (bucketKeys == null) {
+            if (key < 0 || key >= offsets.length - 1) {
+                return -1;
+            }
+            bucket = (int) key;
+        } else {
+            bucket = Arrays.binarySearch(bucketKeys, key);
+            if (bucket < 0) {
+                return -1;
+            }
+        }
+        if (offsets[bucket] == offsets[bucket + 1]) {
+            return -1;
+        }
+        return bucket;
+    }
+
+    public Bucket getBucket(long key) {
+        int bucket = findBucket(key);
+        if (bucket < 0) {
+            return null;
+        }
+        return new Bucket(pointIndices, offsets[bucket], offsets[bucket + 1]);
+    }
+
+    public Bucket getKeyRange(long lowKey, long highKey) {
+
+        // All points with lowKey <= key <= highKey, which are contiguous in pointIndices
+        int lowBucket;
+        int highBucket;
+        if (bucketKeys == null) {
+            lowBucket = (int) Math.min(Math.max(lowKey, 0), offsets.length - 1);
+            highBucket = (int) Math.min(Math.max(highKey, -1), offsets.length - 2) + 1;
+        } else {
+            lowBucket = Arrays.binarySearch(bucketKeys, lowKey);
+            if (lowBucket < 0) {
+                lowBucket = -lowBucket - 1;
+            }
+            highBucket = Arrays.binarySearch(bucketKeys, highKey);
+            highBucket = highBucket < 0 ? -highBucket - 1 : highBucket + 1;
+        }
+        if (lowBucket >= highBucket || offsets[lowBucket] == offsets[highBucket]) {
+            return null;
+        }
+        return new Bucket(pointIndices, offsets[lowBucket], offsets[highBucket]);
+    }
+
+    public Bucket getBuckets(long[] keys, int noKeys) {
+
+        // Locate the buckets, skipping keys without points and repeated buckets
+        int[] buckets = new int[noKeys];
+        int noBuckets = 0;
+        int totalSize = 0;
+        for (int i = 0; i < noKeys; i++) {
+            int bucket = findBucket(keys[i]);
+            if (bucket < 0 || contains(buckets, noBuckets, bucket)) {
+                continue;
+            }
+            buckets[noBuckets++] = bucket;
+            totalSize += offsets[bucket + 1] - offsets[bucket];
+        }
+        if (noBuckets == 0) {
+            return null;
+        }
+        if (noBuckets == 1) {
+            return new Bucket(pointIndices, offsets[buckets[0]], offsets[buckets[0] + 1]);
+        }
+
+        // Copy the points of all buckets into a single array
+        int[] points = new int[totalSize];
+        int ctr = 0;
+        for (int i = 0; i < noBuckets; i++) {
+            int bucketSize = offsets[buckets[i] + 1] - offsets[buckets[i]];
+            System.arraycopy(pointIndices, offsets[buckets[i]], points, ctr, bucketSize);
+            ctr += bucketSize;
+        }
+        return new Bucket(points, 0, totalSize);
+    }
+
+    private boolean contains(int[] array, int size, int value) {
+        for (int i = 0; i < size; i++) {
+            if (array[i] == value) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public long[] getKeysOfBucketsLargerThan(int maxBucketSize) {
+        long[] keys = new long[noBuckets];
+        int noKeys = 0;
+        for (int i = 0; i < offsets.length - 1; i++) {
+            if (offsets[i + 1] - offsets[i] > maxBucketSize) {
+                keys[noKeys++] = bucketKeys == null ? i : bucketKeys[i];
+            }
+        }
+        return Arrays.copyOf(keys, noKeys);
+    }
+
+    public int getNoBuckets() {
+        return noBuckets;
+    }
+
+    // Read-only view of a slice of an array of point indices. No points are copied.
+    static class Bucket extends AbstractList<Integer> implements RandomAccess {
+
+        private final int[] points;
+        private final int start;
+        private final int end;
+
+        public Bucket(int[] points, int start, int end) {
+            this.points = points;
+            this.start = start;
+            this.end = end;
+        }
+
+        public Integer get(int i) {
+            if (i < 0 || i >= end - start) {
+                throw new IndexOutOfBoundsException("Index " + i + " out of bounds for bucket of size " + size());
+            }
+            return points[start + i];
+        }
+
+        public int size() {
+            return end - start;
+        }
+
+        public Bucket slice(int from, int to) {
+            // View of the points at positions from ... to-1 of the bucket
+            return new Bucket(points, start + from, start + to);
+        }
+    }
+
+}
@@ -2,34 +2,45 @@ package lsh;
 
 import java.io.Serializable;
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.LinkedList;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Map;
 import java.util.Collection;
+import java.util.concurrent.ForkJoinTask;
 
 public class C2LSH implements Searchable, Serializable {
 
     List<HashFunction> hashFunctions;
-    List<Map<Integer,List<Integer>>> compoundHashTable;
+    // For each hash function, the bids of all corpus points in ascending order, and the points in the same order.
+    // The points of an interval of bids are contiguous, so widening the interval only moves a cursor on each side.
+    int[][] sortedBids;
+    int[][] sortedPoints;
     final int c = 3;
     int d;
     int minSize;
     int threshold;
     int corpusMatrixSize;
+    // Width of the buckets of the hash functions at radius R = 1
+    double bucketWidth;
 
-    public C2LSH(int d, int K, int minSize, int threshol, boolean angular) {
+    // Terminating conditions in addition to minSize candidates, a value of 0 disables a condition.
+    // A search stops once noVerified candidates are within distance c*R (in bucket widths) of the query,
+    // once the radius R would exceed maxRadius, or once maxCollisions collisions have been counted.
+    int noVerified;
+    int maxRadius;
+    long maxCollisions;
+    // Used to verify candidates. Not serialized, set again by fit or setCorpusMatrix.
+    transient float[][] corpusMatrix;
+
+    // PointerSets reused by the queries of a thread
+    private static final ThreadLocal<PointerSet[]> threadPointers = ThreadLocal.withInitial(() -> new PointerSet[0]);
+
+    public C2LSH(int d, int K, int minSize, int threshold, boolean angular, long seed) {
         this.d = d;
         hashFunctions = new ArrayList<>(K);
-        compoundHashTable = new ArrayList<>(K);
+        // Always set r to 1 if euclidean, always 0.001 if angular.
+        bucketWidth = angular ? 0.001 : 1;
         for (int i = 0; i < K; i++) {
-            // Always set r to 1 if euclidean, always 0.001 if angular.
-            if (angular) {
-                hashFunctions.add(i, new HashFunction(d, 0.001));
-            } else {
-                hashFunctions.add(i, new HashFunction(d, 1));
-            }
-            
+            hashFunctions.add(i, new HashFunction(d, bucketWidth, Utils.deriveSeed(seed, i)));
         }
         this.minSize = minSize;
         this.threshold = threshold;
@@ -43,47 +54,87 @@ public class C2LSH implements Searchable, Serializable {
         this.threshold = threshold;
     }
 
+    public void setTermination(int noVerified, int maxRadius, long maxCollisions) {
+        this.noVerified = noVerified;
+        this.maxRadius = maxRadius;
+        this.maxCollisions = maxCollisions;
+    }
+
+    public void setCorpusMatrix(float[][] corpusMatrix) {
+        this.corpusMatrix = corpusMatrix;
+    }
+
     public void fit(float[][] corpusMatrix) {
         this.corpusMatrixSize = corpusMatrix.length;
+        this.corpusMatrix = corpusMatrix;
+
+        sortedBids = new int[hashFunctions.size()][];
+        sortedPoints = new int[hashFunctions.size()][];
 
+        // The bucket arrays of the hash functions are independent and are built as parallel fork-join tasks.
+        // If called from a fork-join worker, e.g. while building several indexes, the tasks run in the same pool.
+        List<ForkJoinTask<?>> tasks = new ArrayList<>(hashFunctions.size());
         for (int i = 0; i < hashFunctions.size(); i ++) {
-            // Create a map for each hashfunction where the key is a hashed value
-            // and the value is the corpus points that hash to the value
-            Map<Integer, List<Integer>> hashTable = new HashMap<>();
-            // Hash all corpus points and add them to map
-            for (int cIndex = 0; cIndex < corpusMatrix.length; cIndex++) {
-                int hashValue =  hashFunctions.get(i).hash(corpusMatrix[cIndex]);
-                if (hashTable.containsKey(hashValue)) {
-                    hashTable.get(hashValue).add(cIndex);
-                } else {
-                    List<Integer> list = new LinkedList<>();
-                    list.add(cIndex);
-                    hashTable.put(hashValue, list);
-                }
-            }
-            compoundHashTable.add(i, hashTable);
+            final int function = i;
+            tasks.add(ForkJoinTask.adapt(() -> fitFunction(function, corpusMatrix)));
         }
-        
+        ForkJoinTask.invokeAll(tasks);
+    }
+
+    private void fitFunction(int i, float[][] corpusMatrix) {
+
+        // Hash all corpus points, packing the bid in the upper and the point in the lower 32 bits,
+        // so sorting the keys orders the points by bid and points of the same bid by index
+        long[] keys = new long[corpusMatrix.length];
+        for (int cIndex = 0; cIndex < corpusMatrix.length; cIndex++) {
+            int hashValue =  hashFunctions.get(i).hash(corpusMatrix[cIndex]);
+            keys[cIndex] = ((long) hashValue << 32) | cIndex;
+        }
+        Arrays.sort(keys);
+
+        int[] bids = new int[keys.length];
+        int[] points = new int[keys.length];
+        for (int j = 0; j < keys.length; j++) {
+            bids[j] = (int) (keys[j] >> 32);
+            points[j] = (int) keys[j];
+        }
+        sortedBids[i] = bids;
+        sortedPoints[i] = points;
     }
 
     public Collection<Integer> search(float[] qVec) {
 
-        // Vector to count frequency of corpusPoints
-        int[] frequency = new int[corpusMatrixSize];
-        PointerSet[] hashFunctionPointers = new PointerSet[compoundHashTable.size()];
-        List<Integer> candidateSet = new LinkedList<>();
-        
+        // Count frequency of corpusPoints in the counter of this thread, which is reset when the search ends
+        CollisionCounter counter = CollisionCounter.get(corpusMatrixSize);
+        try {
+            return countCollisions(qVec, counter);
+        } finally {
+            counter.reset();
+        }
+    }
+
+    private Collection<Integer> countCollisions(float[] qVec, CollisionCounter counter) {
+
+        PointerSet[] hashFunctionPointers = getPointers(sortedBids.length);
+        // Distances of the noVerified nearest candidates verified so far, in ascending order
+        float[] nearest = null;
+        int noNearest = 0;
+        int noChecked = 0;
+        if (noVerified > 0 && corpusMatrix != null) {
+            nearest = new float[noVerified];
+        }
+
         //oldR is not used in first iteration
         int oldR = 0;
         int R = 1;
 
         while (true) {
             // Prepare pointers for new iteration
-            for (int i = 0; i < compoundHashTable.size(); i++) {
+            for (int i = 0; i < sortedBids.length; i++) {
                 if (R == 1) {
                     // Initialize PointerSet with bid of qVec
                     int bid = hashFunctions.get(i).hash(qVec);
-                    hashFunctionPointers[i] = new PointerSet(bid);
+                    hashFunctionPointers[i].reset(bid, sortedBids[i]);
                 } else {
                     // Rehashing (increasing bucket width)
                     hashFunctionPointers[i].increaseWidth(R);
@@ -92,29 +143,102 @@ public class C2LSH implements Searchable, Serializable {
             // Iterate until rehash is necessary
             for (int iteration = oldR; iteration < R; iteration++) {
                 // Count frequencies
-                for (int i = 0; i < compoundHashTable.size(); i++) {
-                    int nextBid = hashFunctionPointers[i].next();
-                    List<Integer> bidBucket = compoundHashTable.get(i).get(nextBid);
-                    if (bidBucket == null) {
+                boolean exhausted = true;
+                boolean remaining = false;
+                for (int i = 0; i < sortedBids.length; i++) {
+                    PointerSet pointers = hashFunctionPointers[i];
+                    int[] bids = sortedBids[i];
+                    int[] points = sortedPoints[i];
+                    // No points have bids in [pStart, pEnd] that are not counted yet, so the
+                    // remaining bids of this radius are skipped rather than stepped through
+                    if ((pointers.low == 0 || bids[pointers.low - 1] < pointers.pStart)
+                            && (pointers.high == bids.length || bids[pointers.high] > pointers.pEnd)) {
+                        pointers.pLeft = pointers.pStart;
+                        pointers.pRight = pointers.pEnd;
+                        exhausted &= pointers.low == 0 && pointers.high == bids.length;
                         continue;
                     }
-                    for (Integer cIndex : bidBucket) {
-                        if (++frequency[cIndex] == threshold) {
-                            candidateSet.add(cIndex);
+                    remaining = true;
+                    int nextBid = pointers.next();
+                    // Move the cursor on the side of nextBid over the points with that bid, and count them
+                    if (nextBid < pointers.bid) {
+                        int oldLow = pointers.low;
+                        while (pointers.low > 0 && bids[pointers.low - 1] >= nextBid) {
+                            pointers.low--;
+                        }
+                        counter.count(points, pointers.low, oldLow, threshold);
+                    } else {
+                        int oldHigh = pointers.high;
+                        while (pointers.high < bids.length && bids[pointers.high] <= nextBid) {
+                            pointers.high++;
                         }
+                        counter.count(points, oldHigh, pointers.high, threshold);
                     }
+                    exhausted &= pointers.low == 0 && pointers.high == bids.length;
                 }
                 // Check if candidateset is large enough
-                if (candidateSet.size() >= minSize) {
-                    return candidateSet;
+                if (counter.getNoCandidates() >= minSize) {
+                    return counter.getCandidates();
+                }
+                // Verify the new candidates, and stop if enough of them are within c*R of the query
+                if (nearest != null) {
+                    for (; noChecked < counter.getNoCandidates(); noChecked++) {
+                        float distance = Utils.euclideanDistance(corpusMatrix[counter.getCandidate(noChecked)], qVec);
+                        noNearest = insertNearest(nearest, noNearest, distance);
+                    }
+                    if (noNearest == noVerified && nearest[noVerified - 1] <= c * R * bucketWidth) {
+                        return counter.getCandidates();
+                    }
+                }
+                // Stop if the collision budget is spent, or all points have been counted by all hash functions
+                if ((maxCollisions > 0 && counter.getNoCollisions() >= maxCollisions) || exhausted) {
+                    return counter.getCandidates();
                 }
+                // All hash functions have counted every point within the radius, move on to the next radius
+                if (!remaining) {
+                    break;
+                }
+            }
+            // Not enough candidates found -> rehash, unless the radius would exceed maxRadius
+            if (maxRadius > 0 && (long) R * c > maxRadius) {
+                return counter.getCandidates();
             }
-            // Not enough candidates found -> rehash
             oldR = R;
             R = R*c;
         }
     }
 
+    private static int insertNearest(float[] nearest, int noNearest, float distance) {
+        // Inserts distance into the ascending distances nearest[0] ... nearest[noNearest-1],
+        // dropping the largest if the array is full. Returns the new number of distances.
+        if (noNearest == nearest.length) {
+            if (distance >= nearest[noNearest - 1]) {
+                return noNearest;
+            }
+            noNearest--;
+        }
+        int i = noNearest;
+        while (i > 0 && nearest[i - 1] > distance) {
+            nearest[i] = nearest[i - 1];
+            i--;
+        }
+        nearest[i] = distance;
+        return noNearest + 1;
+    }
+
+    private static PointerSet[] getPointers(int noPointers) {
+        PointerSet[] pointers = threadPointers.get();
+        if (pointers.length < noPointers) {
+            int oldLength = pointers.length;
+            pointers = Arrays.copyOf(pointers, noPointers);
+            for (int i = oldLength; i < noPointers; i++) {
+                pointers[i] = new PointerSet();
+            }
+            threadPointers.set(pointers);
+        }
+        return pointers;
+    }
+
     static class PointerSet implements Serializable {
 
         int pStart;
@@ -123,14 +247,34 @@ public class C2LSH implements Searchable, Serializable {
         int pRight;
         int pEnd;
         int sideCount;
+        // The points counted so far are the sorted points in [low, high), those with bids in [pLeft, pRight]
+        int low;
+        int high;
 
-        public PointerSet(int bid) {
+        public void reset(int bid, int[] sortedBids) {
             this.pStart = bid;
             this.pLeft = bid;
             this.bid = bid;
             this.pRight = bid;
             this.pEnd = bid;
             sideCount = 0;
+            low = lowerBound(sortedBids, bid);
+            high = low;
+        }
+
+        private static int lowerBound(int[] sortedBids, int bid) {
+            // Position of the first bid that is at least bid
+            int lo = 0;
+            int hi = sortedBids.length;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (sortedBids[mid] < bid) {
+                    lo = mid + 1;
+                } else {
+                    hi = mid;
+                }
+            }
+            return lo;
         }
 
         public void increaseWidth(int R) {
@@ -155,7 +299,7 @@ public class C2LSH implements Searchable, Serializable {
                     return --pLeft;
                 } 
             }
-            // Used in the first iteration
+            // Used in the first iteration. Later calls find no points left at bid.
             return bid;
         }
     }
@@ -0,0 +1,89 @@
+package lsh;
+
+import java.util.Arrays;
+import java.util.Collection;
+
+public class CollisionCounter {
+
+    // Each thread reuses a single counter for all of its queries, across all collision counting indexes
+    private static final ThreadLocal<CollisionCounter> threadCounters = ThreadLocal.withInitial(CollisionCounter::new);
+
+    // Collision count of each point. Only the points in touched are non-zero, so a reset
+    // costs the number of points that collided rather than the size of the corpus.
+    private short[] counts = new short[0];
+    private int[] touched = new int[1024];
+    private int noTouched;
+    // Points whose count reached the threshold, in the order they reached it
+    private int[] candidates = new int[256];
+    private int noCandidates;
+    private long noCollisions;
+
+    private CollisionCounter() {}
+
+    public static CollisionCounter get(int corpusSize) {
+        // Counter of the calling thread, reset and large enough for corpusSize points
+        CollisionCounter counter = threadCounters.get();
+        if (counter.counts.length < corpusSize) {
+            counter.counts = new short[corpusSize];
+        }
+        return counter;
+    }
+
+    public void count(int[] points, int start, int end, int threshold) {
+        // Counts a collision of each of points[start] ... points[end-1]. Counts stop at the
+        // threshold, so they fit in a short for any threshold up to Short.MAX_VALUE.
+        short[] counts = this.counts;
+        noCollisions += end - start;
+        for (int i = start; i < end; i++) {
+            int cIndex = points[i];
+            int count = counts[cIndex];
+            if (count >= threshold) {
+                continue;
+            }
+            if (count == 0) {
+                if (noTouched == touched.length) {
+                    touched = Arrays.copyOf(touched, 2 * touched.length);
+                }
+                touched[noTouched++] = cIndex;
+            }
+            counts[cIndex] = (short) ++count;
+            if (count == threshold) {
+                if (noCandidates == candidates.length) {
+                    candidates = Arrays.copyOf(candidates, 2 * candidates.length);
+                }
+                candidates[noCandidates++] = cIndex;
+            }
+        }
+    }
+
+    int getCount(int cIndex) {
+        return counts[cIndex];
+    }
+
+    public int getNoCandidates() {
+        return noCandidates;
+    }
+
+    public int getCandidate(int i) {
+        return candidates[i];
+    }
+
+    public long getNoCollisions() {
+        return noCollisions;
+    }
+
+    public Collection<Integer> getCandidates() {
+        // Copy of the candidates, which stays valid after the counter is reset
+        return new BucketIndex.Bucket(Arrays.copyOf(candidates, noCandidates), 0, noCandidates);
+    }
+
+    public void reset() {
+        for (int i = 0; i < noTouched; i++) {
+            counts[touched[i]] = 0;
+        }
+        noTouched = 0;
+        noCandidates = 0;
+        noCollisions = 0;
+    }
+
+}
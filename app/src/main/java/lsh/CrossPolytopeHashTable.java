@@ -0,0 +1,114 @@
+package lsh;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Random;
+
+public class CrossPolytopeHashTable implements Searchable, Serializable {
+
+    // Number of pseudo-random rotations (sign flips followed by a Hadamard transform) per hash function
+    private static final int NOROTATIONS = 3;
+
+    // Random signs of all rotations of all hash functions, NOROTATIONS*D per hash function.
+    // Only the seed is serialized, the signs are regenerated when the table is deserialized.
+    private transient float[] signs;
+    private long seed;
+    private BucketIndex hashIndex;
+    private int K;
+    private int d;
+    // Vectors are zero-padded to the smallest power of two D >= d
+    private int D;
+    // Number of bits of a single hash value in [0, 2D)
+    private int bitsPerHash;
+
+    public CrossPolytopeHashTable(int d, int K, long seed) {
+        this.K = K;
+        this.d = d;
+        this.seed = seed;
+        D = Integer.highestOneBit(d);
+        if (D < d) {
+            D = D << 1;
+        }
+        bitsPerHash = Integer.numberOfTrailingZeros(D) + 1;
+        generateSigns();
+    }
+
+    public CrossPolytopeHashTable(int d, int K) {
+        this(d, K, new Random().nextLong());
+    }
+
+    private void generateSigns() {
+        // Each sign is drawn uniformly from {-1, 1}
+        Random randomGen = new Random(seed);
+        signs = new float[K * NOROTATIONS * D];
+        for (int i = 0; i < signs.length; i++) {
+            signs[i] = randomGen.nextBoolean() ? 1.0f : -1.0f;
+        }
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        generateSigns();
+    }
+
+    public void fit(float[][] corpusMatrix) {
+
+        // Hash each individual corpus point using all hashfunctions, in parallel chunks
+        long[] bins = Utils.hashCorpusParallel(corpusMatrix, D, this::getBin);
+
+        // Freeze the partitions into a compact bucket index
+        if (BucketIndex.isDirectAddressable(K * bitsPerHash, corpusMatrix.length)) {
+            hashIndex = new BucketIndex(bins, 1 << (K * bitsPerHash));
+        } else {
+            hashIndex = new BucketIndex(bins);
+        }
+    }
+
+    public Collection<Integer> search(float[] qVec) {
+        long bin = getBin(qVec, new float[D]);
+        return hashIndex.getBucket(bin);
+    }
+
+    private long getBin(float[] vec, float[] rotated) {
+
+        // Concatenate the hash values of all hash functions {1,...,k}. If the key exceeds
+        // 64 bits the most significant hash values wrap around and are mixed into the key.
+        long listHashValue = 0L;
+        for (int i = 0; i < K; i++) {
+            listHashValue = (listHashValue << bitsPerHash) ^ (listHashValue >>> (64 - bitsPerHash)) ^ hash(i, vec, rotated);
+        }
+        return listHashValue;
+    }
+
+    private int hash(int function, float[] vec, float[] rotated) {
+
+        // Pad vec with zeros to length D
+        System.arraycopy(vec, 0, rotated, 0, d);
+        Arrays.fill(rotated, d, D, 0.0f);
+
+        // Pseudo-random rotation: repeatedly flip signs and apply the Walsh-Hadamard transform
+        for (int rotation = 0; rotation < NOROTATIONS; rotation++) {
+            int offset = (function * NOROTATIONS + rotation) * D;
+            for (int i = 0; i < D; i++) {
+                rotated[i] *= signs[offset + i];
+            }
+            Utils.fastHadamardTransform(rotated);
+        }
+
+        // The closest vertex of the cross-polytope is the coordinate of largest magnitude and its sign
+        int closest = 0;
+        float largest = -1.0f;
+        for (int i = 0; i < D; i++) {
+            float magnitude = Math.abs(rotated[i]);
+            if (magnitude > largest) {
+                largest = magnitude;
+                closest = i;
+            }
+        }
+        return rotated[closest] < 0 ? 2 * closest + 1 : 2 * closest;
+    }
+
+}
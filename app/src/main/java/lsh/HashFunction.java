@@ -1,40 +1,65 @@
 package lsh;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.io.Serializable;
 import java.util.Random;
 
 public class HashFunction implements Serializable {
 
-    private float[] aVec;
-    private double b;
+    // aVec and b are generated from the seed. Only the seed is serialized.
+    private transient float[] aVec;
+    private transient double b;
     private double r;
+    private int d;
+    private long seed;
     private static Random randomGen = new Random();
 
-    public HashFunction(int d, double r) {
+    public HashFunction(int d, double r, long seed) {
 
+        this.d = d;
         this.r = r;
+        this.seed = seed;
+        generate();
+
+    }
+
+    public HashFunction(int d, double r) {
+        this(d, r, randomGen.nextLong());
+    }
+
+    private void generate() {
+        Random seededRandomGen = new Random(seed);
+
         // b is drawn from uniform distribution [0,r]
-        
-        b = randomGen.nextFloat() * r;
+        b = seededRandomGen.nextFloat() * r;
 
         // random d-dimensional vector where each component is drawn from N(0,1)
         aVec = new float[d];
         for (int i = 0; i < d; i++) {
-            aVec[i] = (float) randomGen.nextGaussian();
+            aVec[i] = (float) seededRandomGen.nextGaussian();
         }
-
     }
 
-    // Implement constructor with seed value for testing? Will generate same random
-    // vector each time
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        generate();
+    }
 
     public int hash(float[] xVec) {
 
+        // Calculate the hash-value
+        return (int) Math.floor(project(xVec));
+
+    }
+
+    public double project(float[] xVec) {
+
         // Calculate a.x
         float dotProd = Utils.dot(xVec, aVec);
 
-        // Calculate the hash-value
-        return (int) Math.floor((dotProd + b) / r);
+        // Position on the real line measured in bucket widths
+        return (dotProd + b) / r;
 
     }
 
@@ -1,78 +1,300 @@
 package lsh;
 
-import java.util.LinkedList;
-import java.util.List;
-import java.util.Map;
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
 import java.util.Random;
+import java.util.concurrent.atomic.LongAdder;
 
 
-public class HashTable implements Searchable, Serializable {
+public class HashTable implements MultiProbeSearchable, Serializable {
 
-    private HashFunction[] hashFunctions;
-    private Map<Long, List<Integer>> hashIndex;
+    /* USE MERSENNE PRIME 2^61 - 1 for reduced collision chance */
+    private static final long P = (1L << 61) -1;
+    // Number of times an oversized bucket may be split by a further level of hash functions
+    private static final int MAXSPLITDEPTH = 3;
+
+    // All random values of the table are generated from the seed.
+    // Only the seed is serialized, along with the bucket index.
+    private ProjectionMatrix projectionMatrix;
+    private transient double[] b;
+    private double r;
+    private BucketIndex hashIndex;
     private int K;
-    private long P;
-    private long[] listHashing;
+    private int d;
+    private long seed;
+    private transient long[] listHashing;
 
-    public HashTable(int d, int K, double r) {
+    // Buckets larger than maxBucketSize are split by a second-level table, and at query time
+    // no more than maxBucketSize points are returned. 0 means buckets are unbounded.
+    private int maxBucketSize;
+    private int splitDepth;
+    private Map<Long, SplitBucket> splitBuckets;
+    // Counted by concurrent searches
+    private transient LongAdder noSearches;
+    private transient LongAdder noTruncatedSearches;
+
+    public HashTable(int d, int K, double r, long seed) {
         this.K = K;
-        hashIndex = new HashMap<>();
-        hashFunctions = new HashFunction[K];
+        this.d = d;
+        this.r = r;
+        this.seed = seed;
+        initHashFunctions();
+        initCounters();
+    }
+
+    public HashTable(int d, int K, double r) {
+        this(d, K, r, new Random().nextLong());
+    }
+
+    private void initHashFunctions() {
+        Random randomGen = new Random(seed);
+
+        // K random d-dimensional vectors, one for each hash function
+        projectionMatrix = new ProjectionMatrix(K, d, randomGen.nextLong());
+
+        // b is drawn from uniform distribution [0,r]
+        b = new double[K];
+        for (int i = 0; i < K; i++) {
+            b[i] = randomGen.nextFloat() * r;
+        }
+
+        listHashing = new long[K];
         for (int i = 0; i < K; i++) {
-            hashFunctions[i] = new HashFunction(d, r);
+            listHashing[i] = (long) (randomGen.nextFloat()*(P-1));
         }
     }
 
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        initHashFunctions();
+        initCounters();
+    }
+
+    private void initCounters() {
+        noSearches = new LongAdder();
+        noTruncatedSearches = new LongAdder();
+    }
+
+    public void setMaxBucketSize(int maxBucketSize) {
+        // Must be set before fit for oversized buckets to be split
+        this.maxBucketSize = maxBucketSize;
+    }
+
+    public int getMaxBucketSize() {
+        return maxBucketSize;
+    }
+
+    public long getNoSearches() {
+        return noSearches.sum();
+    }
+
+    public long getNoTruncatedSearches() {
+        return noTruncatedSearches.sum();
+    }
+
     public void fit(float[][] corpusMatrix) {
 
-        /* USE MERSENNE PRIME 2^61 - 1 for reduced collision chance */
-        P = (1L << 61) -1;
-        initList();
+        // Hash each individual corpus point using all hashfunctions, in parallel chunks
+        long[] bins = Utils.hashCorpusParallel(corpusMatrix, K, this::getBin);
+
+        // Freeze the partitions into a compact bucket index
+        hashIndex = new BucketIndex(bins);
 
-        // Hash each individual corpus point using all hashfunctions
-        for (int cIndex = 0; cIndex < corpusMatrix.length; cIndex++) {
-            float[] cVec = corpusMatrix[cIndex];
+        if (maxBucketSize > 0 && splitDepth < MAXSPLITDEPTH) {
+            splitOversizedBuckets(corpusMatrix);
+        }
+    }
+
+    private void splitOversizedBuckets(float[][] corpusMatrix) {
+
+        long[] oversizedBins = hashIndex.getKeysOfBucketsLargerThan(maxBucketSize);
+        if (oversizedBins.length == 0) {
+            return;
+        }
 
-            long bin = getBin(cVec);
+        splitBuckets = new HashMap<>();
+        for (int i = 0; i < oversizedBins.length; i++) {
+            Collection<Integer> bucket = hashIndex.getBucket(oversizedBins[i]);
+            int[] cIndices = new int[bucket.size()];
+            float[][] bucketMatrix = new float[bucket.size()][];
+            int ctr = 0;
+            for (Integer cIndex : bucket) {
+                cIndices[ctr] = cIndex;
+                bucketMatrix[ctr++] = corpusMatrix[cIndex];
+            }
 
-            // Add index to partition
-            List<Integer> partition = hashIndex.get(bin);
-            if (partition == null) {
-                // Create new set of points if partition isn't stored yet
-                partition = new LinkedList<>();
-                partition.add(cIndex);
-                hashIndex.put(bin, partition);
+            // Identical points cannot be separated by any hash function
+            float spread = projectedSpread(bucketMatrix);
+            if (spread == 0.0f) {
                 continue;
             }
-            partition.add(cIndex);
+
+            // Re-partition the points of the bucket with K additional hash functions,
+            // using a bucket width matched to the spread of the points in the bucket
+            HashTable secondLevel = new HashTable(d, K, Math.min(r, spread), Utils.deriveSeed(seed, i));
+            secondLevel.maxBucketSize = maxBucketSize;
+            secondLevel.splitDepth = splitDepth + 1;
+            secondLevel.fit(bucketMatrix);
+            splitBuckets.put(oversizedBins[i], new SplitBucket(cIndices, secondLevel));
         }
     }
 
-    private void initList() {
-        Random randomGen = new Random();
-
-        listHashing = new long[K];
-        for (int i = 0; i < K; i++) {
-            listHashing[i] = (long) (randomGen.nextFloat()*(P-1));
+    private float projectedSpread(float[][] bucketMatrix) {
+        // Standard deviation of the points projected onto a random N(0,1) vector,
+        // i.e. the square root of the summed variance of all dimensions
+        double totalVariance = 0.0;
+        float[] dimensionComponents = new float[bucketMatrix.length];
+        for (int dimension = 0; dimension < d; dimension++) {
+            for (int i = 0; i < bucketMatrix.length; i++) {
+                dimensionComponents[i] = bucketMatrix[i][dimension];
+            }
+            totalVariance += Utils.variance(dimensionComponents);
         }
-    }   
+        return (float) Math.sqrt(totalVariance);
+    }
 
     public Collection<Integer> search(float[] qVec) {
-        long bin = getBin(qVec);
-        return hashIndex.get(bin);
+        long bin = getBin(qVec, new float[K]);
+        return truncate(lookup(bin, qVec), bin);
+    }
+
+    private BucketIndex.Bucket lookup(long bin, float[] qVec) {
+        // Descend into the second-level table if the bucket has been split
+        if (splitBuckets != null) {
+            SplitBucket splitBucket = splitBuckets.get(bin);
+            if (splitBucket != null) {
+                return splitBucket.search(qVec);
+            }
+        }
+        return hashIndex.getBucket(bin);
+    }
+
+    private Collection<Integer> truncate(BucketIndex.Bucket result, long bin) {
+        // Bound the number of candidates returned by the table for a query hashed to bin
+        noSearches.increment();
+        if (maxBucketSize == 0 || result == null || result.size() <= maxBucketSize) {
+            return result;
+        }
+        noTruncatedSearches.increment();
+        // The points of a bucket are sorted, and a window at offset 0 would always return the points with the
+        // lowest ids. The offset is derived from the seed and the bin instead, so results are reproducible.
+        long hash = Utils.deriveSeed(seed, Long.hashCode(bin));
+        int offset = (int) Math.floorMod(hash, (long) (result.size() - maxBucketSize + 1));
+        return result.slice(offset, offset + maxBucketSize);
     }
 
-    private long getBin(float[] vec) {
+    public Collection<Integer> search(float[] qVec, int noProbes) {
 
-        // Find the hashValue of hashing vec with each individual hash function {1,...,k}
+        // Find the hash values of qVec and the distance to the edges of each of its slots
         int[] hashValues = new int[K];
+        Edge[] edges = new Edge[2*K];
+        float[] projections = new float[K];
+        projectionMatrix.project(qVec, projections);
         for (int i = 0; i < K; i++) {
-            hashValues[i] = hashFunctions[i].hash(vec);
+            // Position on the real line measured in bucket widths
+            double projection = (projections[i] + b[i]) / r;
+            hashValues[i] = (int) Math.floor(projection);
+            float leftDistance = (float) (projection - hashValues[i]);
+            edges[2*i] = new Edge(i, -1, leftDistance);
+            edges[2*i + 1] = new Edge(i, 1, 1 - leftDistance);
+        }
+        // Closest edges first, as crossing these is most likely to find neighbors
+        Arrays.sort(edges);
+
+        long[] bins = new long[noProbes + 1];
+        bins[0] = referenceHash(hashValues);
+        int noBins = 1;
+
+        for (Perturbation perturbation : perturbations(edges, noProbes)) {
+            // Hash the perturbed hash values and restore them afterwards
+            for (int edgeIndex : perturbation.getEdgeIndices()) {
+                hashValues[edges[edgeIndex].getFunction()] += edges[edgeIndex].getDelta();
+            }
+            bins[noBins++] = referenceHash(hashValues);
+            for (int edgeIndex : perturbation.getEdgeIndices()) {
+                hashValues[edges[edgeIndex].getFunction()] -= edges[edgeIndex].getDelta();
+            }
+        }
+
+        if (splitBuckets == null) {
+            return truncate(hashIndex.getBuckets(bins, noBins), bins[0]);
+        }
+
+        // Probed buckets which have been split are searched in their second-level table
+        long[] unsplitBins = new long[noBins];
+        int noUnsplitBins = 0;
+        BucketIndex.Bucket result = null;
+        for (int i = 0; i < noBins; i++) {
+            if (splitBuckets.containsKey(bins[i])) {
+                result = concatenate(result, lookup(bins[i], qVec));
+            } else {
+                unsplitBins[noUnsplitBins++] = bins[i];
+            }
         }
+        return truncate(concatenate(result, hashIndex.getBuckets(unsplitBins, noUnsplitBins)), bins[0]);
+    }
+
+    static List<Perturbation> perturbations(Edge[] edges, int noPerturbations) {
 
+        // Generate the first noPerturbations valid perturbation sets in order of increasing score using shift and expand
+        List<Perturbation> perturbations = new ArrayList<>(noPerturbations);
+        PriorityQueue<Perturbation> minHeap = new PriorityQueue<>();
+        minHeap.add(new Perturbation(new int[]{0}, edges[0].getDistance() * edges[0].getDistance()));
+        while (perturbations.size() < noPerturbations && !minHeap.isEmpty()) {
+            Perturbation perturbation = minHeap.poll();
+
+            Perturbation shifted = perturbation.shift(edges);
+            if (shifted != null) {
+                minHeap.add(shifted);
+            }
+            Perturbation expanded = perturbation.expand(edges);
+            if (expanded != null) {
+                minHeap.add(expanded);
+            }
+
+            if (perturbation.isValid(edges)) {
+                perturbations.add(perturbation);
+            }
+        }
+        return perturbations;
+    }
+
+    private static BucketIndex.Bucket concatenate(BucketIndex.Bucket first, BucketIndex.Bucket second) {
+        if (first == null) {
+            return second;
+        }
+        if (second == null) {
+            return first;
+        }
+        int[] points = new int[first.size() + second.size()];
+        int ctr = 0;
+        for (Integer cIndex : first) {
+            points[ctr++] = cIndex;
+        }
+        for (Integer cIndex : second) {
+            points[ctr++] = cIndex;
+        }
+        return new BucketIndex.Bucket(points, 0, points.length);
+    }
+
+    private long getBin(float[] vec, float[] projections) {
+
+        // Project vec onto the random vectors of all hash functions {1,...,k} in one pass
+        projectionMatrix.project(vec, projections);
+
+        // Fold the hash values into a single key the same way as the probed bins
+        int[] hashValues = new int[K];
+        for (int i = 0; i < K; i++) {
+            hashValues[i] = (int) Math.floor((projections[i] + b[i]) / r);
+        }
         return referenceHash(hashValues);
     }
 
@@ -86,5 +308,127 @@ public class HashTable implements Searchable, Serializable {
 
     }
 
-    
+    static class SplitBucket implements Serializable {
+
+        // Points of the oversized bucket, indexed by their position in the second-level table
+        private int[] cIndices;
+        private HashTable secondLevel;
+
+        public SplitBucket(int[] cIndices, HashTable secondLevel) {
+            this.cIndices = cIndices;
+            this.secondLevel = secondLevel;
+        }
+
+        public BucketIndex.Bucket search(float[] qVec) {
+            long bin = secondLevel.getBin(qVec, new float[secondLevel.K]);
+            Collection<Integer> positions = secondLevel.lookup(bin, qVec);
+            if (positions == null) {
+                return null;
+            }
+            // Translate positions in the bucket to corpus indices
+            int[] points = new int[positions.size()];
+            int ctr = 0;
+            for (Integer position : positions) {
+                points[ctr++] = cIndices[position];
+            }
+            return new BucketIndex.Bucket(points, 0, points.length);
+        }
+    }
+
+    static class Edge implements Comparable<Edge> {
+
+        private int function;
+        private int delta;
+        private float distance;
+
+        public Edge(int function, int delta, float distance) {
+            this.function = function;
+            this.delta = delta;
+            this.distance = distance;
+        }
+
+        public int getFunction() {
+            return function;
+        }
+
+        public int getDelta() {
+            return delta;
+        }
+
+        public float getDistance() {
+            return distance;
+        }
+
+        public int compareTo(Edge that) {
+            if (this.distance < that.getDistance()) return -1;
+            if (this.distance > that.getDistance()) return 1;
+            return 0;
+        }
+    }
+
+    static class Perturbation implements Comparable<Perturbation> {
+
+        // Indices into the sorted edges, in ascending order
+        private int[] edgeIndices;
+        private float score;
+
+        public Perturbation(int[] edgeIndices, float score) {
+            this.edgeIndices = edgeIndices;
+            this.score = score;
+        }
+
+        public int[] getEdgeIndices() {
+            return edgeIndices;
+        }
+
+        public float getScore() {
+            return score;
+        }
+
+        public Perturbation shift(Edge[] edges) {
+            // Replace the largest edge with the next one
+            int last = edgeIndices[edgeIndices.length - 1];
+            if (last + 1 == edges.length) {
+                return null;
+            }
+            int[] shifted = Arrays.copyOf(edgeIndices, edgeIndices.length);
+            shifted[shifted.length - 1] = last + 1;
+            float shiftedScore = score - squared(edges[last].getDistance()) + squared(edges[last + 1].getDistance());
+            return new Perturbation(shifted, shiftedScore);
+        }
+
+        public Perturbation expand(Edge[] edges) {
+            // Add the edge following the largest edge
+            int last = edgeIndices[edgeIndices.length - 1];
+            if (last + 1 == edges.length) {
+                return null;
+            }
+            int[] expanded = Arrays.copyOf(edgeIndices, edgeIndices.length + 1);
+            expanded[expanded.length - 1] = last + 1;
+            return new Perturbation(expanded, score + squared(edges[last + 1].getDistance()));
+        }
+
+        public boolean isValid(Edge[] edges) {
+            // A hash function may not be perturbed in both directions
+            for (int i = 0; i < edgeIndices.length; i++) {
+                for (int j = i + 1; j < edgeIndices.length; j++) {
+                    if (edges[edgeIndices[i]].getFunction() == edges[edgeIndices[j]].getFunction()) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
+
+        private static float squared(float value) {
+            return value * value;
+        }
+
+        public int compareTo(Perturbation that) {
+            if (this.score < that.getScore()) return -1;
+            if (this.score > that.getScore()) return 1;
+            return 0;
+        }
+    }
+
 }
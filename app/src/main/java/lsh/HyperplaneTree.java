@@ -0,0 +1,315 @@
+package lsh;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.ThreadLocalRandom;
+import java.io.Serializable;
+
+
+public class HyperplaneTree extends Tree implements Searchable, Serializable {
+
+    // Maximum number of points of a node the split direction is computed from
+    private static final int DIRECTIONSAMPLESIZE = 1000;
+    // Number of power iterations used to approximate the principal direction
+    private static final int POWERITERATIONS = 5;
+    // Number of passes over the sample used to place the two centroids
+    private static final int TWOMEANSITERATIONS = 3;
+
+    // Unit vector of each inner node, indexed by the split index of the node
+    private List<float[]> directions;
+    // Split on the hyperplane between two centroids (Annoy) instead of the approximate principal direction
+    private boolean twoMeans;
+
+    public HyperplaneTree(int maxLeafSize, boolean twoMeans) {
+        super(maxLeafSize);
+        this.twoMeans = twoMeans;
+    }
+
+    public void fit(float[][] corpusMatrix) {
+
+        // The tree is built by partitioning a single permutation of the corpus in place.
+        // projections[i] holds the projection factor of permutation[i] at the current node.
+        int[] permutation = Tree.identityPermutation(corpusMatrix.length);
+        float[] projections = new float[corpusMatrix.length];
+        float[] scratchProjections = new float[corpusMatrix.length];
+        directions = new ArrayList<>();
+
+        super.flatten(createTree(corpusMatrix, permutation, 0, corpusMatrix.length, projections, scratchProjections));
+    }
+
+    protected float project(int node, float[] qVec) {
+        return Utils.dot(directions.get(super.getSplitIndex(node)), qVec);
+    }
+
+    protected Node createSubtree(float[][] corpusMatrix, int[] permutation, int depth) {
+        return createTree(corpusMatrix, permutation, 0, permutation.length, new float[permutation.length], new float[permutation.length]);
+    }
+
+    private Node createTree(float[][] corpusMatrix, int[] permutation, int start, int end, float[] projections, float[] scratchProjections) {
+
+        Node currentNode = new Node();
+
+        if (end - start < super.getMaxLeafSize()) { // Make node leaf node
+            currentNode.setIsLeaf(true);
+            currentNode.setPartition(permutation, start, end);
+            return currentNode;
+        }
+
+        // Compute the split direction from a sample of the points of the node
+        float[][] sample = directionSample(corpusMatrix, permutation, start, end);
+        float[] direction = twoMeans ? twoMeansDirection(sample) : principalDirection(sample);
+
+        // All sampled points are equal and there is no direction to split along
+        if (direction == null) {
+            currentNode.setIsLeaf(true);
+            currentNode.setPartition(permutation, start, end);
+            return currentNode;
+        }
+
+        new ProjectionTask(corpusMatrix, permutation, start, end, direction, projections).invoke();
+
+        //Find Median or potentially mean, of all projections or a sample of them
+        int[] samplePositions = super.samplePositions(start, end);
+        float splitValue;
+        if (samplePositions == null) {
+            System.arraycopy(projections, start, scratchProjections, start, end - start);
+            splitValue = Utils.calculateSplit(scratchProjections, start, end);
+        } else {
+            for (int i = 0; i < samplePositions.length; i++) {
+                scratchProjections[start + i] = projections[samplePositions[i]];
+            }
+            splitValue = Utils.calculateSplit(scratchProjections, start, start + samplePositions.length);
+        }
+
+        // Seperate points to left or right child by swapping them, and their projections, within the permutation
+        int mid = Tree.partition(permutation, projections, start, end, splitValue);
+
+        // A split value computed from a sample can send all points to one side although the node can be
+        // separated, e.g. if all sampled values are equal. Try again with the split value of all points.
+        if ((mid == start || mid == end) && super.usesSample(start, end)) {
+            splitValue = Tree.fullSplitValue(projections, scratchProjections, start, end);
+            mid = Tree.partition(permutation, projections, start, end, splitValue);
+        }
+
+        // All points have the same projection and cannot be separated
+        if (mid == start || mid == end) {
+            currentNode.setIsLeaf(true);
+            currentNode.setPartition(permutation, start, end);
+            return currentNode;
+        }
+
+        currentNode.setSplitIndex(addDirection(direction));
+        currentNode.setSplitValue(splitValue);
+
+        // In a spill tree, points close to the split are stored in both children. The left child is extended
+        // in place by the close points of the right child, and the right child gets a new array of points.
+        float spillMargin = super.spillMargin(projections, start, end);
+        int spillEnd = mid;
+        int[] spillPoints = null;
+        if (spillMargin > 0.0f) {
+            spillPoints = Tree.spillRight(permutation, projections, start, mid, end, splitValue - spillMargin);
+            spillEnd = Tree.partition(permutation, projections, mid, end, splitValue + spillMargin);
+            // Both children must have fewer points than the node
+            if (spillEnd == end || spillPoints.length == end - start) {
+                spillEnd = mid;
+                spillPoints = null;
+            } else {
+                currentNode.setSpillMargin(spillMargin);
+            }
+        }
+        final int leftEnd = spillEnd;
+        final int[] rightPoints = spillPoints == null ? permutation : spillPoints;
+        final int rightStart = spillPoints == null ? mid : 0;
+        final int rightEnd = spillPoints == null ? end : spillPoints.length;
+        final float[] rightProjections = spillPoints == null ? projections : new float[rightEnd];
+        final float[] rightScratchProjections = spillPoints == null ? scratchProjections : new float[rightEnd];
+
+        // Recursively set right and left child. Large subtrees are built in parallel, which is
+        // safe as the children work on disjoint ranges of the permutation and scratch arrays.
+        if (end - start >= PARALLELCUTOFF) {
+            ForkJoinTask<Node> leftTask = ForkJoinTask.adapt(() -> createTree(corpusMatrix, permutation, start, leftEnd, projections, scratchProjections)).fork();
+            currentNode.setRightChild(createTree(corpusMatrix, rightPoints, rightStart, rightEnd, rightProjections, rightScratchProjections));
+            currentNode.setLeftChild(leftTask.join());
+        } else {
+            currentNode.setLeftChild(createTree(corpusMatrix, permutation, start, leftEnd, projections, scratchProjections));
+            currentNode.setRightChild(createTree(corpusMatrix, rightPoints, rightStart, rightEnd, rightProjections, rightScratchProjections));
+        }
+
+        return currentNode;
+    }
+
+    private synchronized int addDirection(float[] direction) {
+        // Synchronized as subtrees may be built concurrently
+        directions.add(direction);
+        return directions.size() - 1;
+    }
+
+    private float[][] directionSample(float[][] corpusMatrix, int[] permutation, int start, int end) {
+        // The points of the node, or DIRECTIONSAMPLESIZE of them drawn with replacement
+        int size = Math.min(end - start, DIRECTIONSAMPLESIZE);
+        float[][] sample = new float[size][];
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        for (int i = 0; i < size; i++) {
+            int position = size == end - start ? start + i : random.nextInt(start, end);
+            sample[i] = corpusMatrix[permutation[position]];
+        }
+        return sample;
+    }
+
+    static float[] principalDirection(float[][] sample) {
+
+        int d = sample[0].length;
+        double[] mean = new double[d];
+        for (float[] xVec : sample) {
+            for (int i = 0; i < d; i++) {
+                mean[i] += xVec[i];
+            }
+        }
+        for (int i = 0; i < d; i++) {
+            mean[i] /= sample.length;
+        }
+
+        // Power iteration v <- C v on the covariance matrix C of the sample, starting from a random direction.
+        // C v is accumulated as the sum of (x - mean) * ((x - mean) . v) without forming C.
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        double[] direction = new double[d];
+        for (int i = 0; i < d; i++) {
+            direction[i] = random.nextGaussian();
+        }
+        double[] nextDirection = new double[d];
+        for (int iteration = 0; iteration < POWERITERATIONS; iteration++) {
+            Arrays.fill(nextDirection, 0.0);
+            for (float[] xVec : sample) {
+                double dotProduct = 0.0;
+                for (int i = 0; i < d; i++) {
+                    dotProduct += (xVec[i] - mean[i]) * direction[i];
+                }
+                for (int i = 0; i < d; i++) {
+                    nextDirection[i] += (xVec[i] - mean[i]) * dotProduct;
+                }
+            }
+            if (!normalize(nextDirection)) {
+                return null;
+            }
+            double[] temp = direction;
+            direction = nextDirection;
+            nextDirection = temp;
+        }
+        return toFloat(direction);
+    }
+
+    static float[] twoMeansDirection(float[][] sample) {
+
+        // Start from two distinct random points of the sample
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int d = sample[0].length;
+        int first = random.nextInt(sample.length);
+        int second = random.nextInt(sample.length);
+        for (int attempt = 0; attempt < 10 && Utils.euclideanSquareDistance(sample[first], sample[second]) == 0.0f; attempt++) {
+            second = random.nextInt(sample.length);
+        }
+        double[] centroidA = new double[d];
+        double[] centroidB = new double[d];
+        for (int i = 0; i < d; i++) {
+            centroidA[i] = sample[first][i];
+            centroidB[i] = sample[second][i];
+        }
+
+        // Move each centroid towards the points closest to it, as running means (Annoy)
+        int countA = 1;
+        int countB = 1;
+        for (int iteration = 0; iteration < TWOMEANSITERATIONS; iteration++) {
+            for (float[] xVec : sample) {
+                double distanceA = 0.0;
+                double distanceB = 0.0;
+                for (int i = 0; i < d; i++) {
+                    distanceA += (xVec[i] - centroidA[i]) * (xVec[i] - centroidA[i]);
+                    distanceB += (xVec[i] - centroidB[i]) * (xVec[i] - centroidB[i]);
+                }
+                if (distanceA * countA < distanceB * countB) {
+                    for (int i = 0; i < d; i++) {
+                        centroidA[i] = (centroidA[i] * countA + xVec[i]) / (countA + 1);
+                    }
+                    countA++;
+                } else if (distanceB * countB < distanceA * countA) {
+                    for (int i = 0; i < d; i++) {
+                        centroidB[i] = (centroidB[i] * countB + xVec[i]) / (countB + 1);
+                    }
+                    countB++;
+                }
+            }
+        }
+
+        // The split hyperplane is normal to the line between the centroids
+        double[] direction = new double[d];
+        for (int i = 0; i < d; i++) {
+            direction[i] = centroidA[i] - centroidB[i];
+        }
+        if (!normalize(direction)) {
+            return null;
+        }
+        return toFloat(direction);
+    }
+
+    private static boolean normalize(double[] aVec) {
+        // Scales aVec to unit length, returns false if it has no length
+        double norm = 0.0;
+        for (double value : aVec) {
+            norm += value * value;
+        }
+        norm = Math.sqrt(norm);
+        if (norm == 0.0 || Double.isNaN(norm)) {
+            return false;
+        }
+        for (int i = 0; i < aVec.length; i++) {
+            aVec[i] /= norm;
+        }
+        return true;
+    }
+
+    private static float[] toFloat(double[] aVec) {
+        float[] result = new float[aVec.length];
+        for (int i = 0; i < aVec.length; i++) {
+            result[i] = (float) aVec[i];
+        }
+        return result;
+    }
+
+    static class ProjectionTask extends RecursiveAction {
+
+        private final float[][] corpusMatrix;
+        private final int[] permutation;
+        private final int low;
+        private final int high;
+        private final float[] direction;
+        private final float[] projections;
+
+        public ProjectionTask(float[][] corpusMatrix, int[] permutation, int low, int high, float[] direction, float[] projections) {
+            this.corpusMatrix = corpusMatrix;
+            this.permutation = permutation;
+            this.low = low;
+            this.high = high;
+            this.direction = direction;
+            this.projections = projections;
+        }
+
+        @Override
+        protected void compute() {
+            // Threshold reached, project chunk in local thread
+            if (high - low <= SCANCHUNKSIZE) {
+                for (int i = low; i < high; i++) {
+                    projections[i] = Utils.dot(direction, corpusMatrix[permutation[i]]);
+                }
+            // Split task into subtasks
+            } else {
+                int mid = low + (high - low) / 2;
+                invokeAll(new ProjectionTask(corpusMatrix, permutation, low, mid, direction, projections),
+                          new ProjectionTask(corpusMatrix, permutation, mid, high, direction, projections));
+            }
+        }
+    }
+
+}
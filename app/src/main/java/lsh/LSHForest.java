@@ -0,0 +1,80 @@
+package lsh;
+
+import java.io.Serializable;
+import java.util.Collection;
+import java.util.Random;
+
+public class LSHForest implements Searchable, Serializable {
+
+    // Number of sign bits stored for each point. The first bit is bit 62 of the code,
+    // so codes are non-negative and sorting them orders the points by prefix.
+    public static final int MAXDEPTH = 63;
+
+    private ProjectionMatrix projectionMatrix;
+    private BucketIndex hashIndex;
+    // Query parameters: the longest prefix considered and the number of candidates to collect
+    private int K;
+    private int minCandidates;
+
+    public LSHForest(int d, long seed) {
+        // MAXDEPTH random hyperplanes. Only the seed is serialized.
+        projectionMatrix = new ProjectionMatrix(MAXDEPTH, d, seed);
+        K = MAXDEPTH;
+        minCandidates = 1;
+    }
+
+    public LSHForest(int d) {
+        this(d, new Random().nextLong());
+    }
+
+    public void setK(int K) {
+        if (K < 0 || K > MAXDEPTH) {
+            throw new IllegalArgumentException("Prefix length must be in [0, " + MAXDEPTH + "], was " + K);
+        }
+        this.K = K;
+    }
+
+    public void setMinCandidates(int minCandidates) {
+        this.minCandidates = minCandidates;
+    }
+
+    public void fit(float[][] corpusMatrix) {
+
+        // Compute the full sign-bit code of each corpus point, in parallel chunks
+        long[] codes = Utils.hashCorpusParallel(corpusMatrix, MAXDEPTH, this::getCode);
+
+        // Sorted codes, so the points sharing any prefix are a contiguous range
+        hashIndex = new BucketIndex(codes);
+    }
+
+    public Collection<Integer> search(float[] qVec) {
+
+        long code = getCode(qVec, new float[MAXDEPTH]);
+
+        // Descend from the longest prefix until enough candidates share the prefix with qVec
+        Collection<Integer> candidates = null;
+        for (int depth = K; depth >= 0; depth--) {
+            long suffixMask = (1L << (MAXDEPTH - depth)) - 1;
+            long lowKey = code & ~suffixMask;
+            candidates = hashIndex.getKeyRange(lowKey, lowKey | suffixMask);
+            if (candidates != null && candidates.size() >= minCandidates) {
+                return candidates;
+            }
+        }
+        return candidates;
+    }
+
+    private long getCode(float[] vec, float[] projections) {
+
+        // Project vec onto all hyperplanes in one pass
+        projectionMatrix.project(vec, projections);
+
+        // Concatenate the sign bits, first hyperplane first
+        long code = 0L;
+        for (int i = 0; i < MAXDEPTH; i++) {
+            code = (code << 1) | (projections[i] < 0 ? 0 : 1);
+        }
+        return code;
+    }
+
+}
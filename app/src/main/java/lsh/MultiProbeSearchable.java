@@ -0,0 +1,9 @@
+package lsh;
+
+import java.util.Collection;
+
+public interface MultiProbeSearchable extends Searchable {
+
+    public Collection<Integer> search(float[] qVec, int noProbes);
+
+}
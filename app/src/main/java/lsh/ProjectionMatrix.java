@@ -0,0 +1,91 @@
+package lsh;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.Serializable;
+import java.util.Random;
+
+public class ProjectionMatrix implements Serializable {
+
+    // Number of rows projected together in a single pass over the input vector
+    private static final int BLOCKSIZE = 4;
+
+    // Random vectors stored contiguously in row-major order. Only the seed is
+    // serialized, the vectors are regenerated when the matrix is deserialized.
+    private transient float[] matrix;
+    private int noRows;
+    private int d;
+    private long seed;
+
+    public ProjectionMatrix(int noRows, int d, long seed) {
+        this.noRows = noRows;
+        this.d = d;
+        this.seed = seed;
+        generateMatrix();
+    }
+
+    private void generateMatrix() {
+        Random randomGen = new Random(seed);
+
+        // Each component is drawn from N(0,1)
+        matrix = new float[noRows * d];
+        for (int i = 0; i < matrix.length; i++) {
+            matrix[i] = (float) randomGen.nextGaussian();
+        }
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        generateMatrix();
+    }
+
+    public int getNoRows() {
+        return noRows;
+    }
+
+    public int getD() {
+        return d;
+    }
+
+    public void project(float[] xVec, float[] projections) {
+
+        if (xVec.length != d) {
+            throw new IllegalArgumentException("Vector of length " + xVec.length + " passed to projection matrix of dimension " + d);
+        }
+
+        // Compute a block of rows at a time so each component of xVec is loaded once per block
+        int row = 0;
+        for (; row + BLOCKSIZE <= noRows; row += BLOCKSIZE) {
+            int offset0 = row * d;
+            int offset1 = offset0 + d;
+            int offset2 = offset1 + d;
+            int offset3 = offset2 + d;
+            double dotProduct0 = 0.0;
+            double dotProduct1 = 0.0;
+            double dotProduct2 = 0.0;
+            double dotProduct3 = 0.0;
+            for (int i = 0; i < d; i++) {
+                float component = xVec[i];
+                dotProduct0 += matrix[offset0 + i] * component;
+                dotProduct1 += matrix[offset1 + i] * component;
+                dotProduct2 += matrix[offset2 + i] * component;
+                dotProduct3 += matrix[offset3 + i] * component;
+            }
+            projections[row] = (float) dotProduct0;
+            projections[row + 1] = (float) dotProduct1;
+            projections[row + 2] = (float) dotProduct2;
+            projections[row + 3] = (float) dotProduct3;
+        }
+
+        // Remaining rows
+        for (; row < noRows; row++) {
+            int offset = row * d;
+            double dotProduct = 0.0;
+            for (int i = 0; i < d; i++) {
+                dotProduct += matrix[offset + i] * xVec[i];
+            }
+            projections[row] = (float) dotProduct;
+        }
+    }
+
+}
@@ -1,10 +1,8 @@
 package lsh;
 
-import java.util.ArrayList;
-import java.util.Collection;
-import java.util.LinkedList;
-import java.util.List;
 import java.util.Random;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
 
 import java.io.Serializable;
 
@@ -16,67 +14,128 @@ public class RKDTree extends Tree implements Searchable, Serializable {
 
     public void fit(float[][] corpusMatrix) {
 
+        // The tree is built by partitioning a single permutation of the corpus in place.
         // Initially the split at the root node is calculated from the entire corpus
-        List<Integer> allPoints = new ArrayList<>(corpusMatrix.length);
-        for (int i = 0; i < corpusMatrix.length; i++) {
-            allPoints.add(i, i);
-        }
+        int[] permutation = Tree.identityPermutation(corpusMatrix.length);
+        float[] values = new float[corpusMatrix.length];
+        float[] components = new float[corpusMatrix.length];
+
+        super.flatten(createTree(corpusMatrix, permutation, 0, corpusMatrix.length, values, components));
 
-        super.setRoot(createTree(corpusMatrix, allPoints));
+    }
 
+    protected Node createSubtree(float[][] corpusMatrix, int[] permutation, int depth) {
+        return createTree(corpusMatrix, permutation, 0, permutation.length, new float[permutation.length], new float[permutation.length]);
     }
 
-    private Node createTree(float[][] corpusMatrix, List<Integer> cIndices) {
+    private Node createTree(float[][] corpusMatrix, int[] permutation, int start, int end, float[] values, float[] components) {
 
         Node currentNode = new Node();
 
         
-        if (cIndices.size() < super.getMaxLeafSize()) { // Make node leaf nod
+        if (end - start < super.getMaxLeafSize()) { // Make node leaf nod
             currentNode.setIsLeaf(true);
-            currentNode.setPartitionSet(cIndices);
-        } else {
-            Dimension splitDimension = findSplitDimension(corpusMatrix, cIndices);
-            List<Integer> left = new LinkedList<>();
-            List<Integer> right = new LinkedList<>();
-
-            // Seperate points to left or right child
-            for (Integer cIndex : cIndices) {
-                if (corpusMatrix[cIndex][splitDimension.getIndex()] < splitDimension.getSplitValue()) {
-                    left.add(cIndex);
-                } else {
-                    right.add(cIndex);
-                }
-            }
+            currentNode.setPartition(permutation, start, end);
+            return currentNode;
+        }
+
+        Dimension splitDimension = findSplitDimension(corpusMatrix, permutation, start, end, components);
+        int splitIndex = splitDimension.getIndex();
+        float splitValue = splitDimension.getSplitValue();
 
-            currentNode.setSplitIndex(splitDimension.getIndex());
-            currentNode.setSplitValue(splitDimension.getSplitValue());
+        // Seperate points to left or right child by swapping them, and values[i] holding their
+        // component along the split dimension, within the permutation
+        for (int i = start; i < end; i++) {
+            values[i] = corpusMatrix[permutation[i]][splitIndex];
+        }
+        int mid = Tree.partition(permutation, values, start, end, splitValue);
+
+        // A split value computed from a sample can send all points to one side although the node can be
+        // separated, e.g. if all sampled values are equal. Try again with the split value of all points.
+        if ((mid == start || mid == end) && super.usesSample(start, end)) {
+            splitValue = Tree.fullSplitValue(values, components, start, end);
+            mid = Tree.partition(permutation, values, start, end, splitValue);
+        }
+
+        // All points are equal along the split dimension and cannot be separated
+        if (mid == start || mid == end) {
+            currentNode.setIsLeaf(true);
+            currentNode.setPartition(permutation, start, end);
+            return currentNode;
+        }
 
-            // Recursively set right and left child
-            currentNode.setLeftChild(createTree(corpusMatrix, left));
-            currentNode.setRightChild(createTree(corpusMatrix, right));
+        currentNode.setSplitIndex(splitIndex);
+        currentNode.setSplitValue(splitValue);
+
+        // In a spill tree, points close to the split are stored in both children. The left child is extended
+        // in place by the close points of the right child, and the right child gets a new array of points.
+        float spillMargin = super.spillMargin(values, start, end);
+        int spillEnd = mid;
+        int[] spillPoints = null;
+        if (spillMargin > 0.0f) {
+            spillPoints = Tree.spillRight(permutation, values, start, mid, end, splitValue - spillMargin);
+            spillEnd = Tree.partition(permutation, values, mid, end, splitValue + spillMargin);
+            // Both children must have fewer points than the node
+            if (spillEnd == end || spillPoints.length == end - start) {
+                spillEnd = mid;
+                spillPoints = null;
+            } else {
+                currentNode.setSpillMargin(spillMargin);
+            }
+        }
+        final int leftEnd = spillEnd;
+        final int[] rightPoints = spillPoints == null ? permutation : spillPoints;
+        final int rightStart = spillPoints == null ? mid : 0;
+        final int rightEnd = spillPoints == null ? end : spillPoints.length;
+        final float[] rightValues = spillPoints == null ? values : new float[rightEnd];
+        final float[] rightComponents = spillPoints == null ? components : new float[rightEnd];
+
+        // Recursively set right and left child. Large subtrees are built in parallel, which is
+        // safe as the children work on disjoint ranges of the permutation and scratch arrays.
+        if (end - start >= PARALLELCUTOFF) {
+            ForkJoinTask<Node> leftTask = ForkJoinTask.adapt(() -> createTree(corpusMatrix, permutation, start, leftEnd, values, components)).fork();
+            currentNode.setRightChild(createTree(corpusMatrix, rightPoints, rightStart, rightEnd, rightValues, rightComponents));
+            currentNode.setLeftChild(leftTask.join());
+        } else {
+            currentNode.setLeftChild(createTree(corpusMatrix, permutation, start, leftEnd, values, components));
+            currentNode.setRightChild(createTree(corpusMatrix, rightPoints, rightStart, rightEnd, rightValues, rightComponents));
         }
 
         return currentNode;
 
     } 
 
-    private Dimension findSplitDimension(float[][] corpusMatrix, List<Integer> cIndices) {
+    private Dimension findSplitDimension(float[][] corpusMatrix, int[] permutation, int start, int end, float[] components) {
 
         // Number of dimensions of highest variance to choose from
         final int o = 5;
 
-        int noDimensions = corpusMatrix[0].length;
+        int noDimensions = corpusMatrix[permutation[start]].length;
         Dimension[] dimensions = new Dimension[noDimensions];
 
-        // Calculate the variance across each dimension for the subset of points
-        for (int d = 0; d < noDimensions; d++ ) {
-            float[] dimensionComponents = new float[cIndices.size()];
-            int ctr = 0;
-            for (Integer cIndex : cIndices) {
-                dimensionComponents[ctr] = corpusMatrix[cIndex][d];
-                ctr++;
+        // The split is selected from points[low] ... points[high-1], either all points of the node or a sample of them
+        int[] points = permutation;
+        int low = start;
+        int high = end;
+        int[] samplePositions = super.samplePositions(start, end);
+        if (samplePositions != null) {
+            points = new int[samplePositions.length];
+            for (int i = 0; i < samplePositions.length; i++) {
+                points[i] = permutation[samplePositions[i]];
             }
-            dimensions[d] = new Dimension(d, Utils.variance(dimensionComponents));
+            low = 0;
+            high = points.length;
+        }
+
+        // Calculate the variance across each dimension for the subset of points in a single pass
+        // over the points. Sums are taken relative to the first point to avoid cancellation.
+        float[] shift = corpusMatrix[points[low]];
+        double[] sums = new VarianceTask(corpusMatrix, points, low, high, shift).invoke();
+        int size = high - low;
+        for (int d = 0; d < noDimensions; d++ ) {
+            double mean = sums[d] / size;
+            float variance = (float) (sums[noDimensions + d] / size - mean * mean);
+            dimensions[d] = new Dimension(d, variance);
         }
         
         // Quickselect for top o and pick at random
@@ -84,33 +143,66 @@ public class RKDTree extends Tree implements Searchable, Serializable {
         Random myRandom = new Random();
         Dimension chosenDimension = dimensions[myRandom.nextInt(o)];
 
-        // Calculate split value of chosen dimension
-        float[] dimensionComponents = new float[cIndices.size()];
-        int ctr = 0;
-        for (Integer cIndex : cIndices) {
-            dimensionComponents[ctr] = corpusMatrix[cIndex][chosenDimension.getIndex()];
-            ctr++;
+        // Calculate split value of chosen dimension, using components[start] ... components[start+size-1] as scratch space
+        for (int i = 0; i < size; i++) {
+            components[start + i] = corpusMatrix[points[low + i]][chosenDimension.getIndex()];
         }
-        chosenDimension.setSplitValue(Utils.calculateSplit(dimensionComponents));
+        chosenDimension.setSplitValue(Utils.calculateSplit(components, start, start + size));
 
         return chosenDimension;
 
     }
 
-    public Collection<Integer> search(float[] qvec) {
-        Node currentNode = super.getRoot();
+    protected float project(int node, float[] qVec) {
+        return qVec[super.getSplitIndex(node)];
+    }
 
-        while (!currentNode.getIsLeaf()) {
-            float splitValue = currentNode.getSplitValue();
-            int splitIndex = currentNode.getSplitIndex();
-            if (qvec[splitIndex] < splitValue) {
-                currentNode = currentNode.getLeftChild();
-            } else {
-                currentNode = currentNode.getRightChild();
-            }
+    static class VarianceTask extends RecursiveTask<double[]> {
+
+        private final float[][] corpusMatrix;
+        private final int[] permutation;
+        private final int low;
+        private final int high;
+        private final float[] shift;
+
+        public VarianceTask(float[][] corpusMatrix, int[] permutation, int low, int high, float[] shift) {
+            this.corpusMatrix = corpusMatrix;
+            this.permutation = permutation;
+            this.low = low;
+            this.high = high;
+            this.shift = shift;
         }
 
-        return currentNode.getPartitionSet();
+        @Override
+        protected double[] compute() {
+            // Returns the sums followed by the sums of squares of each dimension
+            int noDimensions = shift.length;
+
+            // Threshold reached, sum chunk in local thread
+            if (high - low <= SCANCHUNKSIZE) {
+                double[] sums = new double[2 * noDimensions];
+                for (int i = low; i < high; i++) {
+                    float[] xVec = corpusMatrix[permutation[i]];
+                    for (int d = 0; d < noDimensions; d++) {
+                        double component = xVec[d] - shift[d];
+                        sums[d] += component;
+                        sums[noDimensions + d] += component * component;
+                    }
+                }
+                return sums;
+            }
+
+            // Split task into subtasks
+            int mid = low + (high - low) / 2;
+            VarianceTask leftTask = new VarianceTask(corpusMatrix, permutation, low, mid, shift);
+            leftTask.fork();
+            double[] sums = new VarianceTask(corpusMatrix, permutation, mid, high, shift).compute();
+            double[] leftSums = leftTask.join();
+            for (int i = 0; i < sums.length; i++) {
+                sums[i] += leftSums[i];
+            }
+            return sums;
+        }
     }
 
     class Dimension implements Comparable<Dimension>{
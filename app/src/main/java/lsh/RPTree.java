@@ -1,183 +1,259 @@
 package lsh;
 
 import java.util.ArrayList;
-import java.util.Collection;
-import java.util.LinkedList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Random;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
 import java.io.Serializable;
 
 
 public class RPTree extends Tree implements Searchable, Serializable {
 
     private List<SparseVector> allRandomVectors;
+    // Use random vectors with values +-1 (Achlioptas) instead of Gaussian values
+    private boolean signProjections;
 
-    public RPTree (int maxLeafSize) {
+    public RPTree (int maxLeafSize, boolean signProjections) {
         super(maxLeafSize);
+        this.signProjections = signProjections;
+    }
+
+    public RPTree (int maxLeafSize) {
+        this(maxLeafSize, false);
     }
 
     public void fit(float[][] corpusMatrix) {
 
-        List<Integer> allPoints = new ArrayList<>(corpusMatrix.length);
-        for (int i = 0; i < corpusMatrix.length; i++) {
-            allPoints.add(i, i);
-        }
+        // The tree is built by partitioning a single permutation of the corpus in place.
+        // projections[i] holds the projection factor of permutation[i] at the current node.
+        int[] permutation = Tree.identityPermutation(corpusMatrix.length);
+        float[] projections = new float[corpusMatrix.length];
+        float[] scratchProjections = new float[corpusMatrix.length];
         allRandomVectors = new ArrayList<>();
         
-        super.setRoot(createTree(corpusMatrix, allPoints, 0));
+        super.flatten(createTree(corpusMatrix, permutation, 0, corpusMatrix.length, 0, projections, scratchProjections));
     }
 
-    public Collection<Integer> search(float[] qVec) {
-
-        Node currentNode = super.getRoot();
-
-        while (!currentNode.getIsLeaf()) {
-            float splitValue = currentNode.getSplitValue();
-            SparseVector splittingVector = allRandomVectors.get(currentNode.getSplitIndex());
-
-            float projFactor = Utils.dot(qVec, splittingVector.getVector(), splittingVector.getNonZeroComponents());
-            if (projFactor < splitValue) {
-                currentNode = currentNode.getLeftChild();
-            } else {
-                currentNode = currentNode.getRightChild();
-            }
-        }
-
-        return currentNode.getPartitionSet();
+    protected float project(int node, float[] qVec) {
+        return allRandomVectors.get(super.getSplitIndex(node)).dot(qVec);
+    }
 
+    protected Node createSubtree(float[][] corpusMatrix, int[] permutation, int depth) {
+        return createTree(corpusMatrix, permutation, 0, permutation.length, depth, new float[permutation.length], new float[permutation.length]);
     }
 
-    private Node createTree(float[][] corpusMatrix, List<Integer> cIndices, int depth) {
+    private Node createTree(float[][] corpusMatrix, int[] permutation, int start, int end, int depth, float[] projections, float[] scratchProjections) {
 
         Node currentNode = new Node();
 
-        if (cIndices.size() < super.getMaxLeafSize()) { // Make node leaf node
+        if (end - start < super.getMaxLeafSize()) { // Make node leaf node
             currentNode.setIsLeaf(true);
-            currentNode.setPartitionSet(cIndices);
-        } else {
-
-            ProjectionFactor[] allProjectionFactors = allProjectionFactors(corpusMatrix, cIndices, depth);
-            float splitValue = findSplitValue(allProjectionFactors);
+            currentNode.setPartition(permutation, start, end);
+            return currentNode;
+        }
 
-            List<Integer> left = new LinkedList<>();
-            List<Integer> right = new LinkedList<>();
+        projectPoints(corpusMatrix, permutation, start, end, depth, projections);
 
-            // Seperate points to left or right child
-            for (ProjectionFactor projectionFactor : allProjectionFactors) {
-                if (projectionFactor.projFactor < splitValue) {
-                    left.add(projectionFactor.getcIndex());
-                } else {
-                    right.add(projectionFactor.getcIndex());
-                }
+        //Find Median or potentially mean, of all projections or a sample of them
+        int[] samplePositions = super.samplePositions(start, end);
+        float splitValue;
+        if (samplePositions == null) {
+            System.arraycopy(projections, start, scratchProjections, start, end - start);
+            splitValue = Utils.calculateSplit(scratchProjections, start, end);
+        } else {
+            for (int i = 0; i < samplePositions.length; i++) {
+                scratchProjections[start + i] = projections[samplePositions[i]];
             }
+            splitValue = Utils.calculateSplit(scratchProjections, start, start + samplePositions.length);
+        }
 
-            currentNode.setSplitIndex(depth);
-            currentNode.setSplitValue(splitValue);
+        // Seperate points to left or right child by swapping them, and their projections, within the permutation
+        int mid = Tree.partition(permutation, projections, start, end, splitValue);
 
-            // Recursively set right and left child
-            depth++;
-            currentNode.setLeftChild(createTree(corpusMatrix, left, depth));
-            currentNode.setRightChild(createTree(corpusMatrix, right, depth));
+        // A split value computed from a sample can send all points to one side although the node can be
+        // separated, e.g. if all sampled values are equal. Try again with the split value of all points.
+        if ((mid == start || mid == end) && super.usesSample(start, end)) {
+            splitValue = Tree.fullSplitValue(projections, scratchProjections, start, end);
+            mid = Tree.partition(permutation, projections, start, end, splitValue);
         }
 
-        return currentNode;
-    }
+        // All points have the same projection and cannot be separated
+        if (mid == start || mid == end) {
+            currentNode.setIsLeaf(true);
+            currentNode.setPartition(permutation, start, end);
+            return currentNode;
+        }
 
-    private ProjectionFactor[] allProjectionFactors(float[][] corpusMatrix, List<Integer> cIndices, int depth) {
-        ProjectionFactor[] allProjectionFactors = new ProjectionFactor[cIndices.size()];
-        // Create new randomvector for current depth, if it has not been created
-        if (allRandomVectors.size() == depth) {
-            allRandomVectors.add(randomVector(corpusMatrix[0].length));
+        currentNode.setSplitIndex(depth);
+        currentNode.setSplitValue(splitValue);
+
+        // In a spill tree, points close to the split are stored in both children. The left child is extended
+        // in place by the close points of the right child, and the right child gets a new array of points.
+        float spillMargin = super.spillMargin(projections, start, end);
+        int spillEnd = mid;
+        int[] spillPoints = null;
+        if (spillMargin > 0.0f) {
+            spillPoints = Tree.spillRight(permutation, projections, start, mid, end, splitValue - spillMargin);
+            spillEnd = Tree.partition(permutation, projections, mid, end, splitValue + spillMargin);
+            // Both children must have fewer points than the node
+            if (spillEnd == end || spillPoints.length == end - start) {
+                spillEnd = mid;
+                spillPoints = null;
+            } else {
+                currentNode.setSpillMargin(spillMargin);
+            }
         }
-        // Pick randomvector of current depth
-        SparseVector currentSparseVector = allRandomVectors.get(depth);
-        int ctr = 0;
-        for (Integer cIndex : cIndices) {
-            float projFactor = Utils.dot(corpusMatrix[cIndex], currentSparseVector.getVector(), currentSparseVector.getNonZeroComponents());
-            allProjectionFactors[ctr++] = new ProjectionFactor(cIndex, projFactor);
+        final int leftEnd = spillEnd;
+        final int[] rightPoints = spillPoints == null ? permutation : spillPoints;
+        final int rightStart = spillPoints == null ? mid : 0;
+        final int rightEnd = spillPoints == null ? end : spillPoints.length;
+        final float[] rightProjections = spillPoints == null ? projections : new float[rightEnd];
+        final float[] rightScratchProjections = spillPoints == null ? scratchProjections : new float[rightEnd];
+
+        // Recursively set right and left child. Large subtrees are built in parallel, which is
+        // safe as the children work on disjoint ranges of the permutation and scratch arrays.
+        if (end - start >= PARALLELCUTOFF) {
+            ForkJoinTask<Node> leftTask = ForkJoinTask.adapt(() -> createTree(corpusMatrix, permutation, start, leftEnd, depth + 1, projections, scratchProjections)).fork();
+            currentNode.setRightChild(createTree(corpusMatrix, rightPoints, rightStart, rightEnd, depth + 1, rightProjections, rightScratchProjections));
+            currentNode.setLeftChild(leftTask.join());
+        } else {
+            currentNode.setLeftChild(createTree(corpusMatrix, permutation, start, leftEnd, depth + 1, projections, scratchProjections));
+            currentNode.setRightChild(createTree(corpusMatrix, rightPoints, rightStart, rightEnd, depth + 1, rightProjections, rightScratchProjections));
         }
-        return allProjectionFactors;
+
+        return currentNode;
     }
 
-    private float findSplitValue(ProjectionFactor[] projectionFactors) {
-        float[] factorValues = new float[projectionFactors.length];
-        int ctr = 0;
+    private void projectPoints(float[][] corpusMatrix, int[] permutation, int start, int end, int depth, float[] projections) {
+        // Pick randomvector of current depth, and project the points in parallel chunks if there are many
+        SparseVector currentSparseVector = getRandomVector(depth, corpusMatrix[permutation[start]].length);
+        new ProjectionTask(corpusMatrix, permutation, start, end, currentSparseVector, projections).invoke();
+    }
 
-        // Create an array of projection factor values
-        for (ProjectionFactor projectionFactor : projectionFactors) {
-            factorValues[ctr++] = projectionFactor.getProjFactor();
+    private synchronized SparseVector getRandomVector(int depth, int nrDimensions) {
+        // Create new randomvector for current depth, if it has not been created.
+        // Synchronized as subtrees of the same depth may be built concurrently.
+        while (allRandomVectors.size() <= depth) {
+            allRandomVectors.add(randomVector(nrDimensions));
         }
-
-        //Find Median or potentially mean
-        return Utils.calculateSplit(factorValues);
+        return allRandomVectors.get(depth);
     }
 
     private SparseVector randomVector(int nrDimensions) {
 
         // 1/sqrt(d) fixed parameter
         float sparsity = 1 / (float) Math.sqrt( (double) nrDimensions);
-        float[] randomVec = new float[nrDimensions];
-        List<Integer> nonZeroComponents = new LinkedList<>();
+        int[] indices = new int[nrDimensions];
+        float[] values = new float[nrDimensions];
+        int noNonZero = 0;
 
-        // Create random vector with sparsity 1/sqrt(d)
+        // Create random vector with sparsity 1/sqrt(d). A vector without non-zero
+        // components cannot be normalized and is drawn again.
         Random myRandom = new Random();
-        for (int i = 0; i < nrDimensions; i++) {
-            float randValue = myRandom.nextFloat();
-            if (randValue < sparsity) {
-                // Non-zero components are given a value drawn from a Guassian distribution with mean 0.0 and standard deviation 1.0
-                randomVec[i] = (float) myRandom.nextGaussian();
-                nonZeroComponents.add(i);
-            } else {
-                randomVec[i] = 0;
+        while (noNonZero == 0) {
+            for (int i = 0; i < nrDimensions; i++) {
+                float randValue = myRandom.nextFloat();
+                if (randValue < sparsity) {
+                    indices[noNonZero] = i;
+                    if (signProjections) {
+                        // Non-zero components are given the value 1 or -1 with equal probability
+                        values[noNonZero++] = myRandom.nextBoolean() ? 1.0f : -1.0f;
+                    } else {
+                        // Non-zero components are given a value drawn from a Guassian distribution with mean 0.0 and standard deviation 1.0
+                        values[noNonZero++] = (float) myRandom.nextGaussian();
+                    }
+                }
             }
         }
-        randomVec = Utils.normalize(randomVec);
-        return new SparseVector(randomVec, nonZeroComponents);
+        return new SparseVector(Arrays.copyOf(indices, noNonZero), Arrays.copyOf(values, noNonZero), signProjections);
     }
 
-    class ProjectionFactor implements Comparable<ProjectionFactor> {
-
-        int cIndex;
-        float projFactor;
-
-        public ProjectionFactor(int cIndex, float projFactor) {
-            this.cIndex = cIndex;
-            this.projFactor = projFactor;
+    static class ProjectionTask extends RecursiveAction {
+
+        private final float[][] corpusMatrix;
+        private final int[] permutation;
+        private final int low;
+        private final int high;
+        private final SparseVector sparseVector;
+        private final float[] projections;
+
+        public ProjectionTask(float[][] corpusMatrix, int[] permutation, int low, int high, SparseVector sparseVector, float[] projections) {
+            this.corpusMatrix = corpusMatrix;
+            this.permutation = permutation;
+            this.low = low;
+            this.high = high;
+            this.sparseVector = sparseVector;
+            this.projections = projections;
         }
 
-        public int getcIndex() {
-            return cIndex;
+        @Override
+        protected void compute() {
+            // Threshold reached, project chunk in local thread
+            if (high - low <= SCANCHUNKSIZE) {
+                for (int i = low; i < high; i++) {
+                    projections[i] = sparseVector.dot(corpusMatrix[permutation[i]]);
+                }
+            // Split task into subtasks
+            } else {
+                int mid = low + (high - low) / 2;
+                invokeAll(new ProjectionTask(corpusMatrix, permutation, low, mid, sparseVector, projections),
+                          new ProjectionTask(corpusMatrix, permutation, mid, high, sparseVector, projections));
+            }
         }
+    }
 
-        public float getProjFactor() {
-            return projFactor;
-        }
+    static class SparseVector implements Serializable {
 
-        public int compareTo(ProjectionFactor that) {
-            if (this.projFactor < that.getProjFactor()) return -1;
-            if (this.projFactor > that.getProjFactor()) return 1;
-            return 0;
-        }
-    }
+        // Indices of the non-zero components in ascending order
+        private int[] indices;
+        // Values of the non-zero components, normalized to a unit vector. Null if all values are +-scale,
+        // in which case indices holds the components of value scale followed by those of value -scale.
+        private float[] values;
+        private int noPositive;
+        private float scale;
 
-    class SparseVector implements Serializable {
+        public SparseVector(int[] indices, float[] values, boolean signValues) {
 
-        private float[] vector;
-        private List<Integer> nonZeroComponents;
+            double norm = 0.0;
+            for (float value : values) {
+                norm += value * value;
+            }
+            norm = Math.sqrt(norm);
 
-        public SparseVector(float[] vector, List<Integer> nonZeroComponents) {
-            
-            this.nonZeroComponents = nonZeroComponents;
-            this.vector = vector;
-        }
+            if (!signValues) {
+                this.indices = indices;
+                this.values = new float[values.length];
+                for (int i = 0; i < values.length; i++) {
+                    this.values[i] = (float) (values[i] / norm);
+                }
+                return;
+            }
 
-        public float[] getVector() {
-            return this.vector;
+            // Group the components by sign, so projecting only needs additions and subtractions
+            this.indices = new int[indices.length];
+            int ctr = 0;
+            for (int i = 0; i < indices.length; i++) {
+                if (values[i] > 0) {
+                    this.indices[ctr++] = indices[i];
+                }
+            }
+            noPositive = ctr;
+            for (int i = 0; i < indices.length; i++) {
+                if (values[i] < 0) {
+                    this.indices[ctr++] = indices[i];
+                }
+            }
+            scale = (float) (1.0 / norm);
         }
 
-        public List<Integer> getNonZeroComponents() {
-            return this.nonZeroComponents;
-        }        
+        public float dot(float[] xVec) {
+            if (values == null) {
+                return scale * Utils.signedSum(xVec, indices, noPositive);
+            }
+            return Utils.sparseDot(xVec, indices, values);
+        }
 
     }
      
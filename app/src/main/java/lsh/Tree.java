@@ -1,55 +1,588 @@
 package lsh;
 
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ThreadLocalRandom;
 import java.io.Serializable;
 
-public abstract class Tree implements Serializable{
+public abstract class Tree implements Searchable, Serializable{
+
+    // Value of splitIndices for leaf nodes
+    protected static final int LEAF = -1;
+
+    // Subtrees of at least this many points are built as separate fork-join tasks,
+    // and scans over that many points are split into chunks of SCANCHUNKSIZE
+    protected static final int PARALLELCUTOFF = 1 << 15;
+    protected static final int SCANCHUNKSIZE = 4096;
 
-    private Node root;
     private int maxLeafSize;
+    // Number of points sampled to select the split of a node, 0 to use all points of the node
+    private int sampleSize;
+    // Points within this fraction of a node's spread from the split are stored in both children (spill tree)
+    private float spillFraction;
+
+    // Flattened tree, the root is node 0 and a built tree is numbered in breadth-first order. For an
+    // inner node n, splitIndices[n] and splitValues[n] define the split and leftChildren[n] and
+    // rightChildren[n] are the children. For a leaf node n, the points of the leaf are
+    // leafPoints[leftChildren[n]] ... leafPoints[rightChildren[n]-1]
+    private int[] splitIndices;
+    private float[] splitValues;
+    // Points within spillMargins[n] of the split value of node n are stored in both children, 0 if the node did not spill
+    private float[] spillMargins;
+    private int[] leftChildren;
+    private int[] rightChildren;
+    private int[] leafPoints;
+
+    // The arrays grow as points are inserted. Only the first noNodes nodes and noLeafPoints leaf points are used.
+    private int noNodes;
+    private int noLeafPoints;
+    // Number of entries of points in leaves, a point spilled to several leaves has several entries.
+    // Slots of leafPoints not in any leaf are left behind by moved leaves.
+    private int noPoints;
+    // Tombstones of deleted points, which are left out of search results until the leaves are compacted
+    private BitSet deleted;
+    private int noDeleted;
+    // Leaves whose points could not be separated, mapped to the size at which splitting them is tried again
+    private Map<Integer, Integer> splitRetrySizes;
+
 
-    
     public Tree(int maxLeafSize) {
         this.maxLeafSize = maxLeafSize;
     }
 
-    public void setRoot(Node root) {
-        this.root = root;
+    public int getMaxLeafSize() {
+        return maxLeafSize;
     }
 
-    public Node getRoot() {
-        return root;
+    public void setSampleSize(int sampleSize) {
+        this.sampleSize = sampleSize;
     }
 
-    public int getMaxLeafSize() {
-        return maxLeafSize;
+    public void setSpillFraction(float spillFraction) {
+        this.spillFraction = spillFraction;
+    }
+
+    protected boolean usesSample(int start, int end) {
+        // True if the split of the node [start, end) is computed from a sample of its points
+        return sampleSize > 0 && end - start > sampleSize;
+    }
+
+    protected int[] samplePositions(int start, int end) {
+        // Random positions in [start, end), drawn with replacement. Returns null if all positions should be used.
+        if (!usesSample(start, end)) {
+            return null;
+        }
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int[] positions = new int[sampleSize];
+        for (int i = 0; i < sampleSize; i++) {
+            positions[i] = random.nextInt(start, end);
+        }
+        return positions;
+    }
+
+    // Projection of qVec used to compare against the split value of an inner node
+    protected abstract float project(int node, float[] qVec);
+
+    public Collection<Integer> search(float[] qVec) {
+        int node = 0;
+
+        while (splitIndices[node] != LEAF) {
+            if (project(node, qVec) < splitValues[node]) {
+                node = leftChildren[node];
+            } else {
+                node = rightChildren[node];
+            }
+        }
+
+        return getLeaf(node);
+    }
+
+    public Collection<Integer> descend(int node, float distance, float[] qVec, Queue<Branch> branches) {
+        // Descends from node to the leaf of qVec, adding each branch not taken to the queue. Branches are
+        // keyed by the largest distance from qVec to a split boundary crossed to reach them.
+        while (splitIndices[node] != LEAF) {
+            float margin = project(node, qVec) - splitValues[node];
+            float branchDistance = Math.max(distance, Math.abs(margin));
+            if (margin < 0) {
+                branches.add(new Branch(this, rightChildren[node], branchDistance));
+                node = leftChildren[node];
+            } else {
+                branches.add(new Branch(this, leftChildren[node], branchDistance));
+                node = rightChildren[node];
+            }
+        }
+
+        return getLeaf(node);
+    }
+
+    private Collection<Integer> getLeaf(int node) {
+        Collection<Integer> leaf = new BucketIndex.Bucket(leafPoints, leftChildren[node], rightChildren[node]);
+        if (noDeleted == 0) {
+            return leaf;
+        }
+
+        // Leave out points deleted since the last compaction
+        List<Integer> liveLeaf = new ArrayList<>(leaf.size());
+        for (int i = leftChildren[node]; i < rightChildren[node]; i++) {
+            if (!deleted.get(leafPoints[i])) {
+                liveLeaf.add(leafPoints[i]);
+            }
+        }
+        return liveLeaf;
+    }
+
+    public int[] getLeafOrder() {
+        // All points of the tree, with the points of each leaf next to each other
+        int[] leafOrder = new int[noPoints];
+        BitSet added = new BitSet();
+        int ctr = 0;
+        for (int node = 0; node < noNodes; node++) {
+            if (splitIndices[node] != LEAF) {
+                continue;
+            }
+            for (int i = leftChildren[node]; i < rightChildren[node]; i++) {
+                int cIndex = leafPoints[i];
+                if (!deleted.get(cIndex) && !added.get(cIndex)) {
+                    added.set(cIndex);
+                    leafOrder[ctr++] = cIndex;
+                }
+            }
+        }
+        return Arrays.copyOf(leafOrder, ctr);
+    }
+
+    /* ----------- Incremental updates ----------- */
+
+    // Builds a subtree over the given points, as a subtree at the given depth. Used to split leaves that grow too large.
+    protected abstract Node createSubtree(float[][] corpusMatrix, int[] permutation, int depth);
+
+    public void insert(int cIndex, float[][] corpusMatrix) {
+        // Routes corpusMatrix[cIndex] to its leaves, which are split if they reach maxLeafSize.
+        // Updates must not run concurrently with searches.
+
+        // Remove the old entry of a deleted point before it is inserted again
+        if (deleted.get(cIndex)) {
+            compact();
+        }
+
+        for (int[] leaf : routeToLeaves(corpusMatrix[cIndex])) {
+            addToLeaf(leaf[0], leaf[1], cIndex, corpusMatrix);
+        }
+
+        if (needsCompaction()) {
+            compact();
+        }
+    }
+
+    private void addToLeaf(int node, int depth, int cIndex, float[][] corpusMatrix) {
+
+        // Move the leaf to the end of leafPoints, unless it is already there, so it can grow in place
+        int start = leftChildren[node];
+        int end = rightChildren[node];
+        ensureLeafPointsCapacity(noLeafPoints + (end - start) + 1);
+        if (end != noLeafPoints) {
+            System.arraycopy(leafPoints, start, leafPoints, noLeafPoints, end - start);
+            leftChildren[node] = noLeafPoints;
+            noLeafPoints += end - start;
+        }
+        leafPoints[noLeafPoints++] = cIndex;
+        rightChildren[node] = noLeafPoints;
+        noPoints++;
+
+        int size = rightChildren[node] - leftChildren[node];
+        if (size >= maxLeafSize && size >= splitRetrySizes.getOrDefault(node, 0)) {
+            splitLeaf(node, depth, corpusMatrix);
+        }
+    }
+
+    public void remove(int cIndex, float[] xVec) {
+        // Removes the entries of cIndex, whose vector is xVec, from the leaves xVec is routed to. Unlike
+        // delete, no tombstone is left, so the point can be inserted again with a new vector right away.
+        for (int[] leaf : routeToLeaves(xVec)) {
+            removeFromLeaf(leaf[0], cIndex);
+        }
+
+        if (needsCompaction()) {
+            compact();
+        }
+    }
+
+    private List<int[]> routeToLeaves(float[] xVec) {
+        // Leaves that store xVec, each with its depth. Points within the spill margin of a split are
+        // stored in both children, as when the tree is built, otherwise there is a single leaf.
+        List<int[]> leaves = new ArrayList<>(1);
+        routeToLeaves(0, 0, xVec, leaves);
+        return leaves;
+    }
+
+    private void routeToLeaves(int node, int depth, float[] xVec, List<int[]> leaves) {
+        while (splitIndices[node] != LEAF) {
+            float projection = project(node, xVec);
+            boolean left = projection < splitValues[node] + spillMargins[node];
+            boolean right = projection >= splitValues[node] - spillMargins[node];
+            if (left && right) {
+                routeToLeaves(rightChildren[node], depth + 1, xVec, leaves);
+            }
+            node = left ? leftChildren[node] : rightChildren[node];
+            depth++;
+        }
+        leaves.add(new int[]{node, depth});
+    }
+
+    private void removeFromLeaf(int node, int cIndex) {
+        // Swap the entry with the last point of the leaf and shrink the leaf
+        for (int i = leftChildren[node]; i < rightChildren[node]; i++) {
+            if (leafPoints[i] == cIndex) {
+                // A leaf at the end of leafPoints gives the slot back, so it can still grow in place
+                if (rightChildren[node] == noLeafPoints) {
+                    noLeafPoints--;
+                }
+                leafPoints[i] = leafPoints[--rightChildren[node]];
+                noPoints--;
+                return;
+            }
+        }
+    }
+
+    public void delete(int cIndex) {
+        // Marks cIndex as deleted, the leaves are compacted once enough points have been deleted
+        if (deleted.get(cIndex)) {
+            return;
+        }
+        deleted.set(cIndex);
+        noDeleted++;
+
+        if (needsCompaction()) {
+            compact();
+        }
     }
 
+    private void splitLeaf(int node, int depth, float[][] corpusMatrix) {
+
+        // Deleted points are dropped, as their vectors may no longer be available
+        int oldSize = rightChildren[node] - leftChildren[node];
+        int[] permutation = new int[oldSize];
+        int size = 0;
+        for (int i = leftChildren[node]; i < rightChildren[node]; i++) {
+            if (!deleted.get(leafPoints[i])) {
+                permutation[size++] = leafPoints[i];
+            }
+        }
+        permutation = Arrays.copyOf(permutation, size);
 
-    public class Node implements Serializable {
+        Node subtree = createSubtree(corpusMatrix, permutation, depth);
+        if (subtree.getIsLeaf()) {
+            // The points of the leaf cannot be separated, try again once the leaf has doubled in size
+            splitRetrySizes.put(node, 2 * oldSize);
+            return;
+        }
+        splitRetrySizes.remove(node);
+
+        // The tombstones of the dropped points are cleared, unless copies of the points may remain in other leaves
+        if (spillFraction <= 0.0f) {
+            for (int i = leftChildren[node]; i < rightChildren[node]; i++) {
+                if (deleted.get(leafPoints[i])) {
+                    deleted.clear(leafPoints[i]);
+                    noDeleted--;
+                }
+            }
+        }
+
+        // The leaf becomes the root of the subtree, whose leaves are appended to leafPoints
+        noPoints -= oldSize;
+        placeNodes(subtree, node);
+    }
+
+    private boolean needsCompaction() {
+        // Compact once deleted points and slots left behind by moved leaves make up a quarter of leafPoints
+        int noUnused = noLeafPoints - noPoints + noDeleted;
+        return noUnused > maxLeafSize && noUnused > noLeafPoints / 4;
+    }
+
+    private void compact() {
+
+        // Rewrite leafPoints with the live points of each leaf next to each other
+        int[] compacted = new int[noPoints];
+        int ctr = 0;
+        for (int node = 0; node < noNodes; node++) {
+            if (splitIndices[node] != LEAF) {
+                continue;
+            }
+            int start = ctr;
+            for (int i = leftChildren[node]; i < rightChildren[node]; i++) {
+                if (!deleted.get(leafPoints[i])) {
+                    compacted[ctr++] = leafPoints[i];
+                }
+            }
+            leftChildren[node] = start;
+            rightChildren[node] = ctr;
+        }
+
+        leafPoints = compacted;
+        noLeafPoints = ctr;
+        noPoints = ctr;
+        deleted.clear();
+        noDeleted = 0;
+    }
+
+    private void ensureLeafPointsCapacity(int capacity) {
+        if (leafPoints.length < capacity) {
+            leafPoints = Arrays.copyOf(leafPoints, Math.max(capacity, 2 * leafPoints.length));
+        }
+    }
+
+    private void ensureNodeCapacity(int capacity) {
+        if (splitIndices.length < capacity) {
+            int newCapacity = Math.max(capacity, 2 * splitIndices.length);
+            splitIndices = Arrays.copyOf(splitIndices, newCapacity);
+            splitValues = Arrays.copyOf(splitValues, newCapacity);
+            spillMargins = Arrays.copyOf(spillMargins, newCapacity);
+            leftChildren = Arrays.copyOf(leftChildren, newCapacity);
+            rightChildren = Arrays.copyOf(rightChildren, newCapacity);
+        }
+    }
+
+    protected int getSplitIndex(int node) {
+        return splitIndices[node];
+    }
+
+    /* ----------- Flattened tree, read by tests ----------- */
+
+    int getNoNodes() {
+        return noNodes;
+    }
+
+    boolean isLeaf(int node) {
+        return splitIndices[node] == LEAF;
+    }
+
+    float getSplitValue(int node) {
+        return splitValues[node];
+    }
+
+    float getSpillMargin(int node) {
+        return spillMargins[node];
+    }
+
+    int getLeftChild(int node) {
+        return leftChildren[node];
+    }
+
+    int getRightChild(int node) {
+        return rightChildren[node];
+    }
+
+    int[] getLeafPoints(int node) {
+        // Entries of the leaf, including deleted points
+        return Arrays.copyOfRange(leafPoints, leftChildren[node], rightChildren[node]);
+    }
+
+    protected void flatten(Node root) {
+
+        // Count the nodes and the entries of points in leaves
+        int capacity = 0;
+        int leafPointsCapacity = 0;
+        Queue<Node> queue = new ArrayDeque<>();
+        queue.add(root);
+        while (!queue.isEmpty()) {
+            Node node = queue.poll();
+            capacity++;
+            if (node.getIsLeaf()) {
+                leafPointsCapacity += node.getEnd() - node.getStart();
+            } else {
+                queue.add(node.getLeftChild());
+                queue.add(node.getRightChild());
+            }
+        }
+
+        splitIndices = new int[capacity];
+        splitValues = new float[capacity];
+        spillMargins = new float[capacity];
+        leftChildren = new int[capacity];
+        rightChildren = new int[capacity];
+        leafPoints = new int[leafPointsCapacity];
+        noNodes = 1;
+        noLeafPoints = 0;
+        noPoints = 0;
+        deleted = new BitSet();
+        noDeleted = 0;
+        splitRetrySizes = new HashMap<>();
+        placeNodes(root, 0);
+    }
+
+    private void placeNodes(Node root, int rootIndex) {
+
+        // Stores root at rootIndex and the nodes below it from noNodes on in breadth-first order, and appends the
+        // points of each leaf to leafPoints. Children are numbered in the order they are added to the queue.
+        Queue<Node> queue = new ArrayDeque<>();
+        Queue<Integer> indices = new ArrayDeque<>();
+        queue.add(root);
+        indices.add(rootIndex);
+        while (!queue.isEmpty()) {
+            Node node = queue.poll();
+            int index = indices.poll();
+            if (node.getIsLeaf()) {
+                int size = node.getEnd() - node.getStart();
+                ensureLeafPointsCapacity(noLeafPoints + size);
+                System.arraycopy(node.getPoints(), node.getStart(), leafPoints, noLeafPoints, size);
+                splitIndices[index] = LEAF;
+                leftChildren[index] = noLeafPoints;
+                noLeafPoints += size;
+                rightChildren[index] = noLeafPoints;
+                noPoints += size;
+            } else {
+                ensureNodeCapacity(noNodes + 2);
+                splitIndices[index] = node.getSplitIndex();
+                splitValues[index] = node.getSplitValue();
+                spillMargins[index] = node.getSpillMargin();
+                leftChildren[index] = noNodes++;
+                rightChildren[index] = noNodes++;
+                queue.add(node.getLeftChild());
+                indices.add(leftChildren[index]);
+                queue.add(node.getRightChild());
+                indices.add(rightChildren[index]);
+            }
+        }
+    }
+
+    protected static int partition(int[] permutation, float[] values, int start, int end, float splitValue) {
+        // Moves the points of permutation[start] ... permutation[end-1] with values below splitValue to
+        // the front, swapping values along with the points. Returns the end of the front.
+        int last = end - 1;
+        int left = start;
+        while (left <= last) {
+            if (values[left] < splitValue) {
+                left++;
+            } else {
+                int temp = permutation[left];
+                permutation[left] = permutation[last];
+                permutation[last] = temp;
+                float tempValue = values[left];
+                values[left] = values[last];
+                values[last--] = tempValue;
+            }
+        }
+        return left;
+    }
+
+    protected static float fullSplitValue(float[] values, float[] scratch, int start, int end) {
+        // Split value of all values[start] ... values[end-1], using the same range of scratch
+        System.arraycopy(values, start, scratch, start, end - start);
+        return Utils.calculateSplit(scratch, start, end);
+    }
+
+    protected float spillMargin(float[] values, int start, int end) {
+        // Distance from the split within which points are stored in both children
+        if (spillFraction <= 0.0f) {
+            return 0.0f;
+        }
+        float min = values[start];
+        float max = values[start];
+        for (int i = start + 1; i < end; i++) {
+            min = Math.min(min, values[i]);
+            max = Math.max(max, values[i]);
+        }
+        return spillFraction * (max - min);
+    }
+
+    protected static int[] spillRight(int[] permutation, float[] values, int start, int mid, int end, float lowValue) {
+        // Points of the right child [mid, end) together with the points of the left child [start, mid)
+        // with values of at least lowValue
+        int noSpilled = 0;
+        for (int i = start; i < mid; i++) {
+            if (values[i] >= lowValue) {
+                noSpilled++;
+            }
+        }
+        int[] rightPoints = new int[noSpilled + end - mid];
+        int ctr = 0;
+        for (int i = start; i < mid; i++) {
+            if (values[i] >= lowValue) {
+                rightPoints[ctr++] = permutation[i];
+            }
+        }
+        System.arraycopy(permutation, mid, rightPoints, ctr, end - mid);
+        return rightPoints;
+    }
+
+    protected static int[] identityPermutation(int size) {
+        int[] permutation = new int[size];
+        for (int i = 0; i < size; i++) {
+            permutation[i] = i;
+        }
+        return permutation;
+    }
+
+
+    // Unexplored subtree of a tree during a priority search
+    static class Branch implements Comparable<Branch> {
+
+        private Tree tree;
+        private int node;
+        private float distance;
+
+        public Branch(Tree tree, int node, float distance) {
+            this.tree = tree;
+            this.node = node;
+            this.distance = distance;
+        }
+
+        public Tree getTree() {
+            return tree;
+        }
+
+        public int getNode() {
+            return node;
+        }
+
+        public float getDistance() {
+            return distance;
+        }
+
+        public int compareTo(Branch that) {
+            if (this.distance < that.getDistance()) return -1;
+            if (this.distance > that.getDistance()) return 1;
+            return 0;
+        }
+    }
+
+
+    // Node used while constructing the tree, before it is flattened
+    static class Node {
 
         private Node leftChild;
         private Node rightChild;
 
         private float splitValue;
         private int splitIndex;
+        private float spillMargin;
 
         private boolean isLeaf;
-        private List<Integer> partitionSet;
-    
-        
-    
+        // Range of the array holding the points of a leaf
+        private int[] points;
+        private int start;
+        private int end;
+
+
+
         public Node() {
             this.isLeaf = false;
         }
-        
+
         /* ----------- Getter and Setters ----------- */
-    
-        
+
+
         public void setLeftChild(Node leftChild) {
             this.leftChild = leftChild;
         }
-    
+
         public void setRightChild(Node rightChild) {
             this.rightChild = rightChild;
         }
@@ -61,7 +594,7 @@ public abstract class Tree implements Serializable{
         public Node getRightChild() {
             return rightChild;
         }
-    
+
         public void setSplitValue(float splitValue) {
             this.splitValue = splitValue;
         }
@@ -69,7 +602,15 @@ public abstract class Tree implements Serializable{
         public float getSplitValue() {
             return splitValue;
         }
-    
+
+        public void setSpillMargin(float spillMargin) {
+            this.spillMargin = spillMargin;
+        }
+
+        public float getSpillMargin() {
+            return spillMargin;
+        }
+
         public void setSplitIndex(int splitIndex) {
             this.splitIndex = splitIndex;
         }
@@ -77,23 +618,33 @@ public abstract class Tree implements Serializable{
         public int getSplitIndex() {
             return splitIndex;
         }
-    
+
         public boolean getIsLeaf() {
             return this.isLeaf;
         }
-    
+
         public void setIsLeaf(boolean value) {
             this.isLeaf = value;
         }
-    
-        public List<Integer> getPartitionSet() {
-            return partitionSet;
+
+        public int[] getPoints() {
+            return points;
+        }
+
+        public int getStart() {
+            return start;
         }
-    
-        public void setPartitionSet(List<Integer> partitionSet) {
-            this.partitionSet = partitionSet;
+
+        public int getEnd() {
+            return end;
         }
-        
+
+        public void setPartition(int[] points, int start, int end) {
+            this.points = points;
+            this.start = start;
+            this.end = end;
+        }
+
     }
 }
 
@@ -11,6 +11,8 @@ import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.ThreadLocalRandom;
 
 // Logging
 import org.apache.logging.log4j.LogManager;
@@ -46,6 +48,32 @@ public class Utils {
         return (float) dotProduct;
     }
 
+    public static float sparseDot(float[] aVec, int[] indices, float[] values) {
+        // Dot product of aVec and the sparse vector with values[i] at component indices[i]
+        double dotProduct = 0.0;
+
+        for (int i = 0; i < indices.length; i++) {
+            dotProduct += aVec[indices[i]] * values[i];
+        }
+
+        return (float) dotProduct;
+    }
+
+    public static float signedSum(float[] aVec, int[] indices, int noPositive) {
+        // Dot product of aVec and the sparse vector with value 1 at the components indices[0] ... indices[noPositive-1]
+        // and -1 at the remaining components in indices
+        double sum = 0.0;
+
+        for (int i = 0; i < noPositive; i++) {
+            sum += aVec[indices[i]];
+        }
+        for (int i = noPositive; i < indices.length; i++) {
+            sum -= aVec[indices[i]];
+        }
+
+        return (float) sum;
+    }
+
     public static float euclideanDistance(float[] aVec, float[] bVec) {
         
         if (aVec.length != bVec.length) {
@@ -74,6 +102,17 @@ public class Utils {
 
     }
 
+    public static float euclideanSquareDistance(float[] aVec, float[] flatMatrix, int offset) {
+        // Distance from aVec to the row of flatMatrix starting at offset
+
+        double squaredDistance = 0.0f;
+        for (int i = 0; i < aVec.length; i++) {
+            squaredDistance += Math.pow(aVec[i]-flatMatrix[offset + i], 2);
+        }
+        return (float) squaredDistance;
+
+    }
+
     public static float angularDistance(float[] aVec, float[] bVec) {
 
         // Calculates cosine distance
@@ -102,6 +141,26 @@ public class Utils {
         return normVec;
     }
 
+    public static void fastHadamardTransform(float[] aVec) {
+
+        // In-place unnormalized Walsh-Hadamard transform in O(d log d). d must be a power of two.
+        int length = aVec.length;
+        if (Integer.bitCount(length) != 1) {
+            throw new IllegalArgumentException("Vector length must be a power of two, was " + length);
+        }
+
+        for (int halfSize = 1; halfSize < length; halfSize <<= 1) {
+            for (int block = 0; block < length; block += 2 * halfSize) {
+                for (int i = block; i < block + halfSize; i++) {
+                    float u = aVec[i];
+                    float v = aVec[i + halfSize];
+                    aVec[i] = u + v;
+                    aVec[i + halfSize] = u - v;
+                }
+            }
+        }
+    }
+
     public static float[][] normalizeCorpus(float[][] corpus) {
         float[][] corpusCopy = Arrays.copyOf(corpus, corpus.length);
         for (int i = 0; i < corpusCopy.length; i++) {
@@ -114,12 +173,35 @@ public class Utils {
 
         PriorityQueue<Distance> maxHeap = new PriorityQueue<>();
         for (Integer index : candidateSet) {
+            // Points deleted from the corpus are null
+            if (corpusMatrix[index] == null) {
+                continue;
+            }
             float distance = euclideanSquareDistance(qVec, corpusMatrix[index]);
             maxHeap.add(new Distance(index, distance));
         }
 
         // Return k neighbors if more than k candidates, else return sorted candidates
-        int min = Math.min(k, candidateSet.size());
+        int min = Math.min(k, maxHeap.size());
+        int[] kNeighbors = new int[min];
+        for (int i = 0; i < min; i++) {
+            kNeighbors[i] = maxHeap.poll().getcIndex();
+        }
+        
+        return kNeighbors;
+    }
+
+    public static int[] bruteForceKNN(float[] flatMatrix, int dimensions, float[] qVec, int[] candidates, int k) {
+        // Row i of flatMatrix is flatMatrix[i*dimensions] ... flatMatrix[(i+1)*dimensions-1]
+
+        PriorityQueue<Distance> maxHeap = new PriorityQueue<>();
+        for (int index : candidates) {
+            float distance = euclideanSquareDistance(qVec, flatMatrix, index * dimensions);
+            maxHeap.add(new Distance(index, distance));
+        }
+
+        // Return k neighbors if more than k candidates, else return sorted candidates
+        int min = Math.min(k, maxHeap.size());
         int[] kNeighbors = new int[min];
         for (int i = 0; i < min; i++) {
             kNeighbors[i] = maxHeap.poll().getcIndex();
@@ -133,13 +215,18 @@ public class Utils {
         PriorityQueue<Distance> maxHeap = new PriorityQueue<>();
 
         for (int index = 0; index < corpusMatrix.length; index++) {
+            // Points deleted from the corpus are null
+            if (corpusMatrix[index] == null) {
+                continue;
+            }
             float distance = euclideanSquareDistance(qVec, corpusMatrix[index]);
             maxHeap.add(new Distance(index, distance));
         }
 
-        int[] kNeighbors = new int[k];
+        int min = Math.min(k, maxHeap.size());
+        int[] kNeighbors = new int[min];
         
-        for (int i = 0; i < k; i++) {
+        for (int i = 0; i < min; i++) {
             kNeighbors[i] = maxHeap.poll().getcIndex();
         }
         
@@ -325,6 +412,66 @@ public class Utils {
 		return secondaryIndex;
     }
     
+    public static long deriveSeed(long seed, int index) {
+        // SplitMix64 finalizer, so that consecutive indices give unrelated seeds
+        long z = seed + (index + 1) * 0x9E3779B97F4A7C15L;
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
+    public static long[] hashCorpusParallel(float[][] corpusMatrix, int scratchSize, BinFunction binFunction) {
+
+        // Hash chunks of the corpus as fork-join tasks. If called from a fork-join worker,
+        // e.g. while building several tables, the chunks are run in the same pool.
+        long[] bins = new long[corpusMatrix.length];
+        new HashCorpusTask(corpusMatrix, bins, 0, corpusMatrix.length, scratchSize, binFunction).invoke();
+        return bins;
+    }
+
+    public interface BinFunction {
+
+        public long getBin(float[] vec, float[] scratch);
+
+    }
+
+    static class HashCorpusTask extends RecursiveAction {
+
+        private static final int CHUNKSIZE = 4096;
+
+        private final float[][] corpusMatrix;
+        private final long[] bins;
+        private final int low;
+        private final int high;
+        private final int scratchSize;
+        private final BinFunction binFunction;
+
+        public HashCorpusTask(float[][] corpusMatrix, long[] bins, int low, int high, int scratchSize, BinFunction binFunction) {
+            this.corpusMatrix = corpusMatrix;
+            this.bins = bins;
+            this.low = low;
+            this.high = high;
+            this.scratchSize = scratchSize;
+            this.binFunction = binFunction;
+        }
+
+        @Override
+        protected void compute() {
+            // Threshold reached, hash chunk in local thread reusing a single scratch array
+            if (high - low <= CHUNKSIZE) {
+                float[] scratch = new float[scratchSize];
+                for (int cIndex = low; cIndex < high; cIndex++) {
+                    bins[cIndex] = binFunction.getBin(corpusMatrix[cIndex], scratch);
+                }
+            // Split task into subtasks
+            } else {
+                int mid = low + (high - low) / 2;
+                invokeAll(new HashCorpusTask(corpusMatrix, bins, low, mid, scratchSize, binFunction),
+                          new HashCorpusTask(corpusMatrix, bins, mid, high, scratchSize, binFunction));
+            }
+        }
+    }
+
     public static boolean isPrime(long n) {
         long k = 2;
         while (k * k <= n && n % k != 0) {
@@ -334,14 +481,18 @@ public class Utils {
     }
 
     public static float variance(float[] array) {
-        
-        int size = array.length;
+        return variance(array, 0, array.length);
+    }
+
+    public static float variance(float[] array, int lo, int hi) {
+        // Variance of array[lo] ... array[hi-1]
+        int size = hi - lo;
 
-        float mean = Utils.mean(array);
+        float mean = Utils.mean(array, lo, hi);
      
         // Compute sum of squared differences with mean.
         double sqDiff = 0;
-        for (int i = 0; i < size; i++) {
+        for (int i = lo; i < hi; i++) {
             sqDiff += (array[i] - mean) * (array[i] - mean);
         }
     
@@ -350,34 +501,96 @@ public class Utils {
     }
 
     public static float mean(float[] array) {
-        int size = array.length;
+        return mean(array, 0, array.length);
+    }
+
+    public static float mean(float[] array, int lo, int hi) {
+        int size = hi - lo;
         
         double sum = 0;
-        for (int i = 0; i < size; i++) {
+        for (int i = lo; i < hi; i++) {
             sum += array[i];
         }
         return (float) (sum / size);
     }
 
     public static float median(float[] array) {
-        Arrays.sort(array);
+        return median(array, 0, array.length);
+    }
+
+    public static float median(float[] array, int lo, int hi) {
+        // Reorders array[lo] ... array[hi-1] in expected linear time
         float median;
-        int size = array.length;
+        int size = hi - lo;
+        float upperMedian = Utils.select(array, lo, hi, lo + size/2);
         if (size % 2 == 0) {
-            median = ((float) array[size/2] + (float) array[size/2 - 1])/2;
+            // The lower median is the largest value before the upper median
+            float lowerMedian = array[lo];
+            for (int i = lo + 1; i < lo + size/2; i++) {
+                lowerMedian = Math.max(lowerMedian, array[i]);
+            }
+            median = (lowerMedian + upperMedian)/2;
         } else {
-            median = (float) array[size/2];
+            median = upperMedian;
         }
         return median;
     }
 
+    public static float select(float[] array, int lo, int hi, int position) {
+        // Reorders array[lo] ... array[hi-1] such that array[position] holds the value it would have if the
+        // range was sorted, with smaller or equal values before it and larger or equal values after it.
+        // Iterative quickselect with random pivots and three-way partitioning, expected linear time.
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int last = hi - 1;
+        while (lo < last) {
+            float pivotValue = array[lo + random.nextInt(last - lo + 1)];
+
+            // Partition into [lo, lt) < pivotValue, [lt, gt] == pivotValue and (gt, last] > pivotValue
+            int lt = lo;
+            int eq = lo;
+            int gt = last;
+            while (eq <= gt) {
+                float value = array[eq];
+                if (value < pivotValue) {
+                    array[eq++] = array[lt];
+                    array[lt++] = value;
+                } else if (value > pivotValue) {
+                    array[eq] = array[gt];
+                    array[gt--] = value;
+                } else {
+                    eq++;
+                }
+            }
+
+            if (position < lt) {
+                last = lt - 1;
+            } else if (position > gt) {
+                lo = gt + 1;
+            } else {
+                return pivotValue;
+            }
+        }
+        return array[position];
+    }
+
     public static float calculateSplit(float[] array) {
+        return calculateSplit(array, 0, array.length);
+    }
+
+    public static float calculateSplit(float[] array, int lo, int hi) {
         
-        float median = Utils.median(array);
+        float min = array[lo];
+        float max = array[lo];
+        for (int i = lo + 1; i < hi; i++) {
+            min = Math.min(min, array[i]);
+            max = Math.max(max, array[i]);
+        }
+
+        float median = Utils.median(array, lo, hi);
         // In case the median creates a highly skewed split
         // use mean
-        if (median == array[0] || median == array[array.length-1]) {
-            return Utils.mean(array);
+        if (median == min || median == max) {
+            return Utils.mean(array, lo, hi);
         }
 
         return median;
@@ -0,0 +1,102 @@
+package lsh;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.*;
+
+import org.junit.jupiter.api.Test;
+
+public class ANNSearcherTest {
+
+    private static float[][] randomCorpus(int size, int d, Random random) {
+        float[][] corpusMatrix = new float[size][d];
+        for (float[] xVec : corpusMatrix) {
+            for (int j = 0; j < d; j++) {
+                xVec[j] = (float) random.nextGaussian();
+            }
+        }
+        return corpusMatrix;
+    }
+
+    private static List<Searchable> fitTrees(float[][] corpusMatrix, int L, int maxLeafSize) {
+        List<Searchable> searchables = new ArrayList<>();
+        for (int l = 0; l < L; l++) {
+            RPTree tree = new RPTree(maxLeafSize);
+            tree.fit(corpusMatrix);
+            searchables.add(tree);
+        }
+        return searchables;
+    }
+
+    @Test
+    public void testPriorityTreeSearch() {
+
+        Random random = new Random(29);
+        float[][] corpusMatrix = randomCorpus(400, 8, random);
+        List<Searchable> searchables = fitTrees(corpusMatrix, 3, 10);
+        ANNSearcher searcher = new ANNSearcher(searchables, corpusMatrix);
+
+        for (int query = 0; query < 20; query++) {
+            float[] qVec = randomCorpus(1, 8, random)[0];
+
+            // The leaves of q are visited first, so the candidates contain those of a defeatist search
+            Set<Integer> leafCandidates = new HashSet<>();
+            PriorityQueue<Tree.Branch> branches = new PriorityQueue<>();
+            for (Searchable searchable : searchables) {
+                leafCandidates.addAll(searchable.search(qVec));
+                branches.add(new Tree.Branch((Tree) searchable, 0, 0.0f));
+            }
+            Set<Integer> candidates = new HashSet<>();
+            float lastDistance = 0.0f;
+            while (!branches.isEmpty() && candidates.size() < 100) {
+                Tree.Branch branch = branches.poll();
+                // Branches are visited in order of their distance to q
+                assertTrue(branch.getDistance() >= lastDistance);
+                lastDistance = branch.getDistance();
+                candidates.addAll(branch.getTree().descend(branch.getNode(), branch.getDistance(), qVec, branches));
+            }
+            assertTrue(candidates.containsAll(leafCandidates));
+            assertTrue(candidates.size() > leafCandidates.size());
+
+            int[] lookupSize = new int[1];
+            int[] prioritySize = new int[1];
+            searcher.lookupSearch(lookupSize, qVec, 10);
+            searcher.priorityTreeSearch(prioritySize, qVec, 10, 100);
+            assertEquals(leafCandidates.size(), lookupSize[0]);
+            assertEquals(candidates.size(), prioritySize[0]);
+
+            // With enough checks every branch is visited and the search is exact
+            int[] exactSize = new int[1];
+            int[] bruteForceSize = new int[1];
+            int[] kNeighbors = searcher.priorityTreeSearch(exactSize, qVec, 5, corpusMatrix.length);
+            assertEquals(corpusMatrix.length, exactSize[0]);
+            assertArrayEquals(searcher.bruteForceSearch(bruteForceSize, qVec, 5), kNeighbors);
+        }
+    }
+
+    @Test
+    public void testReorderCorpus() {
+
+        Random random = new Random(37);
+        float[][] corpusMatrix = randomCorpus(500, 8, random);
+        List<Searchable> searchables = fitTrees(corpusMatrix, 2, 15);
+        ANNSearcher searcher = new ANNSearcher(searchables, corpusMatrix);
+        ANNSearcher reorderedSearcher = new ANNSearcher(searchables, corpusMatrix);
+        reorderedSearcher.reorderCorpus();
+
+        // Candidates scored on the reordered copy are mapped back to the same external ids
+        for (int query = 0; query < 20; query++) {
+            float[] qVec = randomCorpus(1, 8, random)[0];
+            int[] CSize = new int[1];
+            int[] reorderedCSize = new int[1];
+            assertArrayEquals(searcher.lookupSearch(CSize, qVec, 10), reorderedSearcher.lookupSearch(reorderedCSize, qVec, 10));
+            assertEquals(CSize[0], reorderedCSize[0]);
+            assertArrayEquals(searcher.priorityTreeSearch(CSize, qVec, 10, 200),
+                    reorderedSearcher.priorityTreeSearch(reorderedCSize, qVec, 10, 200));
+            assertEquals(CSize[0], reorderedCSize[0]);
+        }
+    }
+
+}
@@ -0,0 +1,77 @@
+package lsh;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.*;
+
+import org.junit.jupiter.api.Test;
+
+public class AngC2LSHTest {
+
+    @Test
+    public void testGetCode() {
+
+        // The first bit of a function is the most significant bit of its code, non-negative projections are 1
+        AngC2LSH c2lsh = new AngC2LSH(4, 2, 3, 10, 1, 42L);
+        float[] projections = {0.5f, -0.2f, 0.0f, -1.0f, -2.0f, 3.0f};
+        assertEquals(0b101, c2lsh.getCode(projections, 0));
+        assertEquals(0b001, c2lsh.getCode(projections, 1));
+
+        // Bits are flipped in order of increasing margin of the projections
+        assertArrayEquals(new int[]{0b001, 0b010, 0b100}, c2lsh.flipOrder(projections, 0));
+        assertArrayEquals(new int[]{0b100, 0b010, 0b001}, c2lsh.flipOrder(projections, 1));
+    }
+
+    @Test
+    public void testFit() {
+
+        Random random = new Random(5);
+        float[][] corpusMatrix = new float[500][6];
+        for (float[] xVec : corpusMatrix) {
+            for (int j = 0; j < xVec.length; j++) {
+                xVec[j] = (float) random.nextGaussian();
+            }
+        }
+        AngC2LSH c2lsh = new AngC2LSH(6, 3, 4, 10, 1, 42L);
+        c2lsh.fit(corpusMatrix);
+        int[][] codes = new int[3][corpusMatrix.length];
+        c2lsh.hashChunk(corpusMatrix, codes, 0, corpusMatrix.length);
+
+        // The buckets of each function cover all points, and each point is in the bucket of its code in ascending order
+        for (int i = 0; i < 3; i++) {
+            int[] offsets = c2lsh.offsets[i];
+            assertEquals(17, offsets.length);
+            assertEquals(0, offsets[0]);
+            assertEquals(corpusMatrix.length, offsets[16]);
+            for (int code = 0; code < 16; code++) {
+                for (int j = offsets[code]; j < offsets[code + 1]; j++) {
+                    assertEquals(code, codes[i][c2lsh.points[i][j]]);
+                    assertTrue(j == offsets[code] || c2lsh.points[i][j - 1] < c2lsh.points[i][j]);
+                }
+            }
+        }
+
+        // A corpus point collides with itself in every function at the first probe
+        c2lsh.setMinSize(1);
+        c2lsh.setThreshold(3);
+        assertTrue(c2lsh.search(corpusMatrix[17]).contains(17));
+    }
+
+    @Test
+    public void testProbeMasks() {
+
+        // The code itself, single bits in flip order, then pairs (0,1), (0,2), (1,2), (0,3), (1,3), (2,3) of positions in flip order
+        int[] flipOrder = {0b0100, 0b0001, 0b1000, 0b0010};
+        assertArrayEquals(new int[]{0, 0b0100, 0b0001, 0b1000, 0b0010, 0b0101, 0b1100, 0b1001, 0b0110, 0b0011, 0b1010},
+                AngC2LSH.probeMasks(flipOrder, 2));
+        assertArrayEquals(new int[]{0, 0b0100, 0b0001, 0b1000, 0b0010}, AngC2LSH.probeMasks(flipOrder, 1));
+
+        // Only codes with up to 2 flipped bits are probed
+        AngC2LSH c2lsh = new AngC2LSH(4, 2, 3, 10, 1, 42L);
+        assertThrows(IllegalArgumentException.class, () -> c2lsh.setTermination(3, 0));
+    }
+
+}
@@ -0,0 +1,108 @@
+package lsh;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.*;
+
+import org.junit.jupiter.api.Test;
+
+public class BucketIndexTest {
+
+    @Test
+    public void testGetBucket() {
+
+        long[] bins = {5L, 3L, 5L, -1L, 3L, 5L};
+        BucketIndex bucketIndex = new BucketIndex(bins);
+
+        assertEquals(3, bucketIndex.getNoBuckets());
+
+        // Points of a bucket are returned in ascending order
+        assertArrayEquals(new Integer[]{0, 2, 5}, bucketIndex.getBucket(5L).toArray(new Integer[0]));
+        assertArrayEquals(new Integer[]{1, 4}, bucketIndex.getBucket(3L).toArray(new Integer[0]));
+        assertArrayEquals(new Integer[]{3}, bucketIndex.getBucket(-1L).toArray(new Integer[0]));
+
+        // Keys that no point hashed to have no bucket
+        assertNull(bucketIndex.getBucket(4L));
+        assertNull(bucketIndex.getBucket(Long.MAX_VALUE));
+    }
+
+    @Test
+    public void testGetBucketDirectAddressed() {
+
+        long[] bins = {5L, 3L, 5L, 0L, 3L, 7L};
+        BucketIndex bucketIndex = new BucketIndex(bins, 8);
+
+        assertEquals(4, bucketIndex.getNoBuckets());
+
+        assertArrayEquals(new Integer[]{0, 2}, bucketIndex.getBucket(5L).toArray(new Integer[0]));
+        assertArrayEquals(new Integer[]{1, 4}, bucketIndex.getBucket(3L).toArray(new Integer[0]));
+        assertArrayEquals(new Integer[]{3}, bucketIndex.getBucket(0L).toArray(new Integer[0]));
+        assertArrayEquals(new Integer[]{5}, bucketIndex.getBucket(7L).toArray(new Integer[0]));
+
+        // Empty buckets and keys outside the range have no bucket
+        assertNull(bucketIndex.getBucket(4L));
+        assertNull(bucketIndex.getBucket(8L));
+        assertNull(bucketIndex.getBucket(-1L));
+    }
+
+    @Test
+    public void testGetKeyRange() {
+
+        long[] bins = {12L, 3L, 8L, 12L, 15L, 9L};
+        BucketIndex bucketIndex = new BucketIndex(bins);
+        BucketIndex directBucketIndex = new BucketIndex(bins, 16);
+
+        for (BucketIndex index : new BucketIndex[]{bucketIndex, directBucketIndex}) {
+            // Points are ordered by key, then by index
+            assertArrayEquals(new Integer[]{2, 5}, index.getKeyRange(8L, 11L).toArray(new Integer[0]));
+            assertArrayEquals(new Integer[]{0, 3, 4}, index.getKeyRange(12L, 15L).toArray(new Integer[0]));
+            assertArrayEquals(new Integer[]{1, 2, 5, 0, 3, 4}, index.getKeyRange(0L, Long.MAX_VALUE).toArray(new Integer[0]));
+            assertArrayEquals(new Integer[]{1}, index.getKeyRange(3L, 3L).toArray(new Integer[0]));
+
+            // Ranges without any points
+            assertNull(index.getKeyRange(4L, 7L));
+            assertNull(index.getKeyRange(16L, 20L));
+        }
+    }
+
+    @Test
+    public void testAllPointsIndexed() {
+
+        Random random = new Random(42);
+        long[] bins = new long[1000];
+        for (int i = 0; i < bins.length; i++) {
+            bins[i] = random.nextInt(50) * 1000003L;
+        }
+        BucketIndex bucketIndex = new BucketIndex(bins);
+
+        int total = 0;
+        Set<Long> distinctBins = new HashSet<>();
+        for (long bin : bins) {
+            distinctBins.add(bin);
+        }
+        for (Long bin : distinctBins) {
+            Collection<Integer> bucket = bucketIndex.getBucket(bin);
+            for (Integer cIndex : bucket) {
+                assertEquals(bin.longValue(), bins[cIndex]);
+            }
+            total += bucket.size();
+        }
+        assertEquals(bins.length, total);
+        assertEquals(distinctBins.size(), bucketIndex.getNoBuckets());
+    }
+
+    @Test
+    public void testIsDirectAddressable() {
+
+        // Direct addressing is used only if the possible keys do not far outnumber the points
+        assertFalse(BucketIndex.isDirectAddressable(12, 1000));
+        assertTrue(BucketIndex.isDirectAddressable(12, 1024));
+        assertFalse(BucketIndex.isDirectAddressable(13, 1024));
+        assertFalse(BucketIndex.isDirectAddressable(21, 100000000));
+    }
+
+}
@@ -0,0 +1,95 @@
+package lsh;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+
+import java.util.*;
+
+import org.junit.jupiter.api.Test;
+
+public class C2LSHTest {
+
+    private static int[] sorted(Collection<Integer> candidates) {
+        return candidates.stream().mapToInt(Integer::intValue).sorted().toArray();
+    }
+
+    private static C2LSH handBuilt(float[] qVec) {
+        // A single hash function with the points placed at bids relative to the bid of qVec.
+        // Point 0 shares the bid of qVec, points 1 and 2 are found at radius 3 and 9, and point 3
+        // lies far outside, behind a gap of empty bids.
+        C2LSH c2lsh = new C2LSH(2, 1, 100, 1, false, 42L);
+        int bid = c2lsh.hashFunctions.get(0).hash(qVec);
+        c2lsh.sortedBids = new int[][]{{bid - 4, bid, bid + 1, bid + 500}};
+        c2lsh.sortedPoints = new int[][]{{2, 0, 1, 3}};
+        c2lsh.corpusMatrixSize = 4;
+        return c2lsh;
+    }
+
+    @Test
+    public void testRadii() {
+
+        float[] qVec = {0.3f, -0.7f};
+        C2LSH c2lsh = handBuilt(qVec);
+
+        // The search stops once the next radius would exceed maxRadius
+        c2lsh.setTermination(0, 1, 0);
+        assertArrayEquals(new int[]{0}, sorted(c2lsh.search(qVec)));
+        c2lsh.setTermination(0, 3, 0);
+        assertArrayEquals(new int[]{0, 1}, sorted(c2lsh.search(qVec)));
+        c2lsh.setTermination(0, 9, 0);
+        assertArrayEquals(new int[]{0, 1, 2}, sorted(c2lsh.search(qVec)));
+        c2lsh.setTermination(0, 27, 0);
+        assertArrayEquals(new int[]{0, 1, 2}, sorted(c2lsh.search(qVec)));
+    }
+
+    @Test
+    public void testExhausted() {
+
+        float[] qVec = {0.3f, -0.7f};
+        C2LSH c2lsh = handBuilt(qVec);
+
+        // Without a maximum radius the search widens past the empty bids until all points have been counted
+        assertArrayEquals(new int[]{0, 1, 2, 3}, sorted(c2lsh.search(qVec)));
+
+        // A query whose bid lies beyond all points finds them once the radius is wide enough
+        int bid = c2lsh.hashFunctions.get(0).hash(qVec);
+        c2lsh.sortedBids = new int[][]{{bid - 30, bid - 20, bid - 10, bid - 9}};
+        c2lsh.sortedPoints = new int[][]{{0, 1, 2, 3}};
+        assertArrayEquals(new int[]{0, 1, 2, 3}, sorted(c2lsh.search(qVec)));
+        c2lsh.setTermination(0, 27, 0);
+        assertArrayEquals(new int[]{2, 3}, sorted(c2lsh.search(qVec)));
+    }
+
+    @Test
+    public void testVerified() {
+
+        float[] qVec = {0.3f, -0.7f};
+        C2LSH c2lsh = handBuilt(qVec);
+        float[][] corpusMatrix = {{0.3f, -0.7f}, {1000.0f, 0.0f}, {-1000.0f, 0.0f}, {0.0f, 1000.0f}};
+        c2lsh.setCorpusMatrix(corpusMatrix);
+
+        // Point 0 is found at R = 1 and lies within c*R of qVec, so a single verified candidate ends the search at R = 1
+        c2lsh.setTermination(1, 0, 0);
+        assertArrayEquals(new int[]{0}, sorted(c2lsh.search(qVec)));
+
+        // Point 0 at a distance of about 71 is only verified once c*R = 81, before point 3 behind the gap is counted
+        corpusMatrix[0] = new float[]{50.0f, 50.0f};
+        c2lsh.setTermination(1, 0, 0);
+        assertArrayEquals(new int[]{0, 1, 2}, sorted(c2lsh.search(qVec)));
+    }
+
+    @Test
+    public void testMaxCollisions() {
+
+        float[] qVec = {0.3f, -0.7f};
+        C2LSH c2lsh = handBuilt(qVec);
+
+        // A single hash function counts at most one bid, and here one point, per step
+        c2lsh.setTermination(0, 0, 1);
+        assertArrayEquals(new int[]{0}, sorted(c2lsh.search(qVec)));
+        c2lsh.setTermination(0, 0, 2);
+        assertArrayEquals(new int[]{0, 1}, sorted(c2lsh.search(qVec)));
+        c2lsh.setTermination(0, 0, 3);
+        assertArrayEquals(new int[]{0, 1, 2}, sorted(c2lsh.search(qVec)));
+    }
+
+}
@@ -0,0 +1,77 @@
+package lsh;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.*;
+
+import org.junit.jupiter.api.Test;
+
+public class CollisionCounterTest {
+
+    @Test
+    public void testThreshold() {
+
+        CollisionCounter counter = CollisionCounter.get(10);
+        try {
+            // Points become candidates once, when their count reaches the threshold, and are not counted further
+            int[] points = {3, 5, 3, 3, 3, 7, 5};
+            counter.count(points, 0, points.length, 2);
+            counter.count(points, 0, 3, 2);
+            assertEquals(10L, counter.getNoCollisions());
+            assertArrayEquals(new Integer[]{3, 5}, counter.getCandidates().toArray(new Integer[0]));
+            assertEquals(2, counter.getCount(3));
+            assertEquals(2, counter.getCount(5));
+            assertEquals(1, counter.getCount(7));
+
+            // Counts stop at the threshold, so they do not overflow a short
+            int[] repeated = new int[40000];
+            counter.count(repeated, 0, repeated.length, Short.MAX_VALUE);
+            assertEquals(Short.MAX_VALUE, counter.getCount(0));
+            assertArrayEquals(new Integer[]{3, 5, 0}, counter.getCandidates().toArray(new Integer[0]));
+        } finally {
+            counter.reset();
+        }
+    }
+
+    @Test
+    public void testReset() {
+
+        // More points than the initial candidates and touched buffers hold, so both have to grow
+        int size = 3000;
+        CollisionCounter counter = CollisionCounter.get(size);
+        int[] points = new int[size];
+        for (int i = 0; i < size; i++) {
+            points[i] = size - 1 - i;
+        }
+        Collection<Integer> candidates;
+        try {
+            counter.count(points, 0, size, 1);
+            counter.count(points, 0, size / 2, 1);
+            candidates = counter.getCandidates();
+            assertEquals(size, counter.getNoCandidates());
+            assertEquals(size + size / 2, counter.getNoCollisions());
+            for (int i = 0; i < size; i++) {
+                assertEquals(points[i], counter.getCandidate(i));
+            }
+        } finally {
+            counter.reset();
+        }
+
+        // Reset clears the counts of the touched points, and candidates returned before the reset stay valid
+        for (int cIndex = 0; cIndex < size; cIndex++) {
+            assertEquals(0, counter.getCount(cIndex));
+        }
+        assertEquals(0, counter.getNoCandidates());
+        assertEquals(0L, counter.getNoCollisions());
+        assertEquals(size, candidates.size());
+        assertEquals(Integer.valueOf(size - 1), candidates.iterator().next());
+
+        // The counter is reused by the next search of the thread
+        assertEquals(counter, CollisionCounter.get(size));
+        counter.count(points, 0, 1, 1);
+        assertArrayEquals(new Integer[]{size - 1}, counter.getCandidates().toArray(new Integer[0]));
+        counter.reset();
+    }
+
+}
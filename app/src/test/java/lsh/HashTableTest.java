@@ -0,0 +1,128 @@
+package lsh;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.*;
+import java.util.stream.IntStream;
+
+import org.junit.jupiter.api.Test;
+
+public class HashTableTest {
+
+    private static float[][] skewedCorpus(Random random) {
+        // 900 points in a tight cluster, which all fall in a single bucket of the first level, and 100 spread out points
+        float[][] corpusMatrix = new float[1000][8];
+        for (int cIndex = 0; cIndex < corpusMatrix.length; cIndex++) {
+            float scale = cIndex < 900 ? 0.01f : 10.0f;
+            for (int j = 0; j < 8; j++) {
+                corpusMatrix[cIndex][j] = (float) random.nextGaussian() * scale;
+            }
+        }
+        return corpusMatrix;
+    }
+
+    @Test
+    public void testSplitBuckets() {
+
+        float[][] corpusMatrix = skewedCorpus(new Random(11));
+        HashTable table = new HashTable(8, 4, 4.0, 42L);
+        table.setMaxBucketSize(50);
+        table.fit(corpusMatrix);
+
+        // Without a maximum bucket size the cluster is a single oversized bucket
+        HashTable unsplitTable = new HashTable(8, 4, 4.0, 42L);
+        unsplitTable.fit(corpusMatrix);
+        assertTrue(unsplitTable.search(corpusMatrix[0]).size() > 50);
+
+        // Second-level tables separate the cluster, so every point is found in a bucket of at most maxBucketSize
+        // points without any bucket being truncated
+        for (int cIndex = 0; cIndex < corpusMatrix.length; cIndex++) {
+            Collection<Integer> bucket = table.search(corpusMatrix[cIndex]);
+            assertTrue(bucket.size() <= 50);
+            assertTrue(bucket.contains(cIndex));
+        }
+        assertEquals(0L, table.getNoTruncatedSearches());
+        assertEquals(1000L, table.getNoSearches());
+    }
+
+    @Test
+    public void testPerturbations() {
+
+        // Edges of a fixed query with K = 4, the left edge of a slot at distance d and the right edge at 1 - d
+        float[] leftDistances = {0.1f, 0.35f, 0.6f, 0.45f};
+        HashTable.Edge[] edges = new HashTable.Edge[8];
+        for (int i = 0; i < 4; i++) {
+            edges[2*i] = new HashTable.Edge(i, -1, leftDistances[i]);
+            edges[2*i + 1] = new HashTable.Edge(i, 1, 1 - leftDistances[i]);
+        }
+        Arrays.sort(edges);
+
+        // Scores of all valid perturbation sets, each function perturbed at most once in one direction
+        List<Float> allScores = new ArrayList<>();
+        for (int set = 1; set < 1 << 8; set++) {
+            float score = 0.0f;
+            Set<Integer> functions = new HashSet<>();
+            boolean valid = true;
+            for (int j = 0; j < 8; j++) {
+                if ((set & (1 << j)) != 0) {
+                    valid &= functions.add(edges[j].getFunction());
+                    score += edges[j].getDistance() * edges[j].getDistance();
+                }
+            }
+            if (valid) {
+                allScores.add(score);
+            }
+        }
+        Collections.sort(allScores);
+        assertEquals(80, allScores.size());
+
+        // The first T perturbation sets are distinct, valid and in order of increasing score, as they would be if
+        // all valid sets were enumerated and sorted
+        int T = 30;
+        List<HashTable.Perturbation> perturbations = HashTable.perturbations(edges, T);
+        assertEquals(T, perturbations.size());
+        Set<String> distinct = new HashSet<>();
+        for (int i = 0; i < T; i++) {
+            HashTable.Perturbation perturbation = perturbations.get(i);
+            assertTrue(perturbation.isValid(edges));
+            assertTrue(distinct.add(Arrays.toString(perturbation.getEdgeIndices())));
+            float score = 0.0f;
+            for (int edgeIndex : perturbation.getEdgeIndices()) {
+                score += edges[edgeIndex].getDistance() * edges[edgeIndex].getDistance();
+            }
+            assertEquals(score, perturbation.getScore(), 1e-5f);
+            assertEquals(allScores.get(i).floatValue(), perturbation.getScore(), 1e-5f);
+            assertTrue(i == 0 || perturbations.get(i - 1).getScore() <= perturbation.getScore());
+        }
+
+        // Generation stops once all valid sets have been produced
+        assertEquals(80, HashTable.perturbations(edges, 200).size());
+    }
+
+    @Test
+    public void testTruncateBuckets() {
+
+        float[][] corpusMatrix = skewedCorpus(new Random(13));
+        HashTable table = new HashTable(8, 4, 4.0, 42L);
+        HashTable sameTable = new HashTable(8, 4, 4.0, 42L);
+        table.fit(corpusMatrix);
+        sameTable.fit(corpusMatrix);
+        // Set after fit, so the bucket of the cluster is not split but truncated at query time
+        table.setMaxBucketSize(50);
+        sameTable.setMaxBucketSize(50);
+
+        // The window of a bucket depends only on the seed and the bin, so tables built with the same seed
+        // return the same points for any query of the bucket
+        List<Integer> bucket = new ArrayList<>(table.search(corpusMatrix[0]));
+        assertEquals(50, bucket.size());
+        assertEquals(bucket, new ArrayList<>(sameTable.search(corpusMatrix[1])));
+        assertEquals(bucket, new ArrayList<>(table.search(corpusMatrix[0])));
+
+        // Searches from several threads are all counted
+        IntStream.range(0, 2000).parallel().forEach(i -> table.search(corpusMatrix[i % 900]));
+        assertEquals(2002L, table.getNoSearches());
+        assertEquals(2002L, table.getNoTruncatedSearches());
+    }
+
+}
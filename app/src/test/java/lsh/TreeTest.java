@@ -0,0 +1,474 @@
+package lsh;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.*;
+
+import org.junit.jupiter.api.Test;
+
+public class TreeTest {
+
+    private static float[][] randomCorpus(int size, int capacity, int d, Random random) {
+        // Rows from size on are left null, to be inserted later
+        float[][] corpusMatrix = new float[capacity][];
+        for (int i = 0; i < size; i++) {
+            corpusMatrix[i] = new float[d];
+            for (int j = 0; j < d; j++) {
+                corpusMatrix[i][j] = (float) random.nextGaussian();
+            }
+        }
+        return corpusMatrix;
+    }
+
+    private static int[] sorted(int[] points) {
+        int[] copy = Arrays.copyOf(points, points.length);
+        Arrays.sort(copy);
+        return copy;
+    }
+
+    private static int[] range(int from, int to, int... excluded) {
+        // Points from ... to-1 that are not excluded
+        Set<Integer> excludedSet = new HashSet<>();
+        for (int cIndex : excluded) {
+            excludedSet.add(cIndex);
+        }
+        List<Integer> points = new ArrayList<>();
+        for (int cIndex = from; cIndex < to; cIndex++) {
+            if (!excludedSet.contains(cIndex)) {
+                points.add(cIndex);
+            }
+        }
+        return points.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    private static int[] checkSubtree(Tree tree, int node, Deque<int[]> path, float[][] corpusMatrix, int[] counts) {
+        // Checks that the points of each leaf below node satisfy the split of every node on their path from the
+        // root, and counts the entries of each point. path holds the nodes above node and 0 for left, 1 for right.
+        if (tree.isLeaf(node)) {
+            for (int cIndex : tree.getLeafPoints(node)) {
+                counts[cIndex]++;
+                for (int[] step : path) {
+                    float projection = tree.project(step[0], corpusMatrix[cIndex]);
+                    if (step[1] == 0) {
+                        assertTrue(projection < tree.getSplitValue(step[0]) + tree.getSpillMargin(step[0]));
+                    } else {
+                        assertTrue(projection >= tree.getSplitValue(step[0]) - tree.getSpillMargin(step[0]));
+                    }
+                }
+            }
+            return counts;
+        }
+        path.push(new int[]{node, 0});
+        checkSubtree(tree, tree.getLeftChild(node), path, corpusMatrix, counts);
+        path.pop();
+        path.push(new int[]{node, 1});
+        checkSubtree(tree, tree.getRightChild(node), path, corpusMatrix, counts);
+        path.pop();
+        return counts;
+    }
+
+    private static void checkTree(Tree tree, float[][] corpusMatrix) {
+        // Checks a tree built without spilling, whose leaves hold every point exactly once
+        int[] counts = checkSubtree(tree, 0, new ArrayDeque<>(), corpusMatrix, new int[corpusMatrix.length]);
+        for (int cIndex = 0; cIndex < corpusMatrix.length; cIndex++) {
+            assertEquals(1, counts[cIndex]);
+        }
+    }
+
+    private static Set<Integer> subtreePoints(Tree tree, int node) {
+        // Distinct points stored in the leaves below node
+        Set<Integer> points = new HashSet<>();
+        if (tree.isLeaf(node)) {
+            for (int cIndex : tree.getLeafPoints(node)) {
+                points.add(cIndex);
+            }
+            return points;
+        }
+        points.addAll(subtreePoints(tree, tree.getLeftChild(node)));
+        points.addAll(subtreePoints(tree, tree.getRightChild(node)));
+        return points;
+    }
+
+    private static Set<Integer> leavesOf(Tree tree, int cIndex) {
+        // Leaves holding an entry of cIndex
+        Set<Integer> leaves = new HashSet<>();
+        for (int node = 0; node < tree.getNoNodes(); node++) {
+            if (tree.isLeaf(node) && Arrays.stream(tree.getLeafPoints(node)).anyMatch(point -> point == cIndex)) {
+                leaves.add(node);
+            }
+        }
+        return leaves;
+    }
+
+    private static Tree[] allTrees(int maxLeafSize) {
+        return new Tree[]{new RKDTree(maxLeafSize), new RPTree(maxLeafSize, false), new RPTree(maxLeafSize, true),
+                new HyperplaneTree(maxLeafSize, false), new HyperplaneTree(maxLeafSize, true)};
+    }
+
+    @Test
+    public void testInsertAndDelete() {
+
+        Random random = new Random(42);
+        float[][] corpusMatrix = randomCorpus(200, 400, 8, random);
+        RKDTree tree = new RKDTree(10);
+        tree.fit(Arrays.copyOf(corpusMatrix, 200));
+
+        // Insert far more points than fit in a leaf, so leaves are split
+        float[][] inserted = randomCorpus(400, 400, 8, random);
+        for (int cIndex = 200; cIndex < 400; cIndex++) {
+            corpusMatrix[cIndex] = inserted[cIndex];
+            tree.insert(cIndex, corpusMatrix);
+        }
+        assertArrayEquals(range(0, 400), sorted(tree.getLeafOrder()));
+        for (int cIndex = 0; cIndex < 400; cIndex++) {
+            Collection<Integer> leaf = tree.search(corpusMatrix[cIndex]);
+            assertTrue(leaf.contains(cIndex));
+            assertTrue(leaf.size() < 10);
+        }
+
+        // Deleted points are left out of the leaf order and of search results
+        tree.delete(5);
+        tree.delete(250);
+        assertArrayEquals(range(0, 400, 5, 250), sorted(tree.getLeafOrder()));
+        assertFalse(tree.search(corpusMatrix[5]).contains(5));
+        assertFalse(tree.search(corpusMatrix[250]).contains(250));
+
+        // A deleted point can be inserted again with a new vector
+        corpusMatrix[250] = corpusMatrix[7].clone();
+        tree.insert(250, corpusMatrix);
+        assertArrayEquals(range(0, 400, 5), sorted(tree.getLeafOrder()));
+        assertTrue(tree.search(corpusMatrix[7]).contains(250));
+
+        // Deleting many points compacts the leaves
+        for (int cIndex = 100; cIndex < 300; cIndex++) {
+            tree.delete(cIndex);
+        }
+        int[] deleted = Arrays.copyOf(range(100, 300), 201);
+        deleted[200] = 5;
+        int[] expected = range(0, 400, deleted);
+        assertArrayEquals(expected, sorted(tree.getLeafOrder()));
+        for (int cIndex : expected) {
+            assertTrue(tree.search(corpusMatrix[cIndex]).contains(cIndex));
+        }
+    }
+
+    @Test
+    public void testRemove() {
+
+        Random random = new Random(7);
+        float[][] corpusMatrix = randomCorpus(300, 300, 8, random);
+        RKDTree tree = new RKDTree(10);
+        tree.fit(corpusMatrix);
+
+        // Moving a point removes it from its old leaf without leaving a tombstone
+        float[] oldVec = corpusMatrix[3];
+        tree.remove(3, oldVec);
+        corpusMatrix[3] = corpusMatrix[200].clone();
+        tree.insert(3, corpusMatrix);
+
+        assertArrayEquals(range(0, 300), sorted(tree.getLeafOrder()));
+        assertTrue(tree.search(corpusMatrix[200]).contains(3));
+        // The old leaf no longer holds the point, unless both vectors are routed to the same leaf
+        Collection<Integer> oldLeaf = tree.search(oldVec);
+        if (!oldLeaf.contains(200)) {
+            assertFalse(oldLeaf.contains(3));
+        }
+    }
+
+    @Test
+    public void testInsertDuplicates() {
+
+        // Equal points cannot be separated, the leaf grows past maxLeafSize and keeps all of them
+        float[][] corpusMatrix = randomCorpus(20, 100, 8, new Random(3));
+        float[] duplicate = {0.5f, 0.5f, 0.5f, 0.5f, 0.5f, 0.5f, 0.5f, 0.5f};
+        RKDTree tree = new RKDTree(5);
+        tree.fit(Arrays.copyOf(corpusMatrix, 20));
+        for (int cIndex = 20; cIndex < 100; cIndex++) {
+            corpusMatrix[cIndex] = duplicate.clone();
+            tree.insert(cIndex, corpusMatrix);
+        }
+        assertArrayEquals(range(0, 100), sorted(tree.getLeafOrder()));
+        Collection<Integer> leaf = tree.search(duplicate);
+        for (int cIndex = 20; cIndex < 100; cIndex++) {
+            assertTrue(leaf.contains(cIndex));
+        }
+        assertEquals(80, leaf.stream().filter(cIndex -> cIndex >= 20).count());
+    }
+
+    @Test
+    public void testSampledSplit() {
+
+        // Each dimension is 1 for only 10 of the 2000 points, so a sample of 10 points nearly always
+        // has equal values on every coordinate and projection, and its split value is one-sided
+        float[][] corpusMatrix = new float[2000][5];
+        for (int cIndex = 0; cIndex < corpusMatrix.length; cIndex++) {
+            if (cIndex % 200 < 5) {
+                corpusMatrix[cIndex][cIndex % 200] = 1.0f;
+            }
+        }
+        Tree[] trees = {new RKDTree(50), new RPTree(50)};
+        for (Tree tree : trees) {
+            tree.setSampleSize(10);
+            tree.fit(corpusMatrix);
+
+            // The split of all points separates the non-zero points, instead of turning the root into a single leaf
+            for (int cIndex = 0; cIndex < 5; cIndex++) {
+                Collection<Integer> leaf = tree.search(corpusMatrix[cIndex]);
+                assertTrue(leaf.contains(cIndex));
+                assertTrue(leaf.size() < corpusMatrix.length);
+            }
+            assertArrayEquals(range(0, 2000), sorted(tree.getLeafOrder()));
+        }
+    }
+
+    @Test
+    public void testFlattenedTree() {
+
+        float[][] corpusMatrix = randomCorpus(500, 500, 8, new Random(13));
+        for (Tree tree : allTrees(20)) {
+            tree.fit(corpusMatrix);
+            checkTree(tree, corpusMatrix);
+
+            // Nodes are numbered in breadth-first order, so the children of the inner nodes in order of their
+            // index are 1, 2, 3, ... and the points of the leaves in order of their index follow each other
+            int nextChild = 1;
+            int nextLeafPoint = 0;
+            for (int node = 0; node < tree.getNoNodes(); node++) {
+                if (tree.isLeaf(node)) {
+                    assertEquals(nextLeafPoint, tree.getLeftChild(node));
+                    assertTrue(tree.getRightChild(node) - tree.getLeftChild(node) < 20);
+                    nextLeafPoint = tree.getRightChild(node);
+                } else {
+                    assertEquals(nextChild++, tree.getLeftChild(node));
+                    assertEquals(nextChild++, tree.getRightChild(node));
+                }
+            }
+            assertEquals(tree.getNoNodes(), nextChild);
+            assertEquals(500, nextLeafPoint);
+        }
+    }
+
+    @Test
+    public void testPartition() {
+
+        // Only positions 2 ... 7 are partitioned, each point keeps its value
+        int[] permutation = {10, 11, 12, 13, 14, 15, 16, 17, 18};
+        float[] values = {9.0f, 9.0f, 3.0f, 1.0f, 4.0f, 1.0f, 5.0f, 2.0f, 0.0f};
+        int mid = Tree.partition(permutation, values, 2, 8, 3.0f);
+        assertEquals(5, mid);
+        assertArrayEquals(new int[]{10, 11}, Arrays.copyOfRange(permutation, 0, 2));
+        assertEquals(18, permutation[8]);
+        assertArrayEquals(new int[]{13, 15, 17}, sorted(Arrays.copyOfRange(permutation, 2, 5)));
+        assertArrayEquals(new int[]{12, 14, 16}, sorted(Arrays.copyOfRange(permutation, 5, 8)));
+        float[] original = {9.0f, 9.0f, 3.0f, 1.0f, 4.0f, 1.0f, 5.0f, 2.0f, 0.0f};
+        for (int i = 0; i < permutation.length; i++) {
+            assertEquals(original[permutation[i] - 10], values[i]);
+        }
+
+        // All values on one side
+        assertEquals(2, Tree.partition(permutation, values, 2, 8, 0.0f));
+        assertEquals(8, Tree.partition(permutation, values, 2, 8, 10.0f));
+    }
+
+    @Test
+    public void testParallelBuild() {
+
+        // The root and its large subtrees are built as separate fork-join tasks
+        int size = Tree.PARALLELCUTOFF + 7000;
+        float[][] corpusMatrix = randomCorpus(size, size, 5, new Random(17));
+        for (Tree tree : allTrees(50)) {
+            tree.fit(corpusMatrix);
+            checkTree(tree, corpusMatrix);
+        }
+    }
+
+    @Test
+    public void testScanTasks() {
+
+        // Scans over more than SCANCHUNKSIZE points are split into subtasks, whose results must match a single scan
+        int size = 3 * Tree.SCANCHUNKSIZE + 100;
+        Random random = new Random(19);
+        float[][] corpusMatrix = randomCorpus(size, size, 6, random);
+        // A shuffled permutation of the corpus
+        int[] permutation = Tree.identityPermutation(size);
+        for (int i = size - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            int temp = permutation[i];
+            permutation[i] = permutation[j];
+            permutation[j] = temp;
+        }
+        int low = 50;
+        int high = size - 30;
+
+        float[] shift = {0.5f, -0.5f, 1.0f, 0.0f, 2.0f, -1.0f};
+        double[] sums = new RKDTree.VarianceTask(corpusMatrix, permutation, low, high, shift).invoke();
+        for (int d = 0; d < 6; d++) {
+            double sum = 0.0;
+            double sumOfSquares = 0.0;
+            for (int i = low; i < high; i++) {
+                double component = corpusMatrix[permutation[i]][d] - shift[d];
+                sum += component;
+                sumOfSquares += component * component;
+            }
+            assertEquals(sum, sums[d], 1e-6 * size);
+            assertEquals(sumOfSquares, sums[6 + d], 1e-6 * size);
+        }
+
+        float[] direction = {0.1f, -0.4f, 0.3f, 0.2f, -0.5f, 0.6f};
+        RPTree.SparseVector sparseVector = new RPTree.SparseVector(new int[]{1, 4}, new float[]{1.0f, -1.0f}, false);
+        float[] hyperplaneProjections = new float[size];
+        float[] sparseProjections = new float[size];
+        new HyperplaneTree.ProjectionTask(corpusMatrix, permutation, low, high, direction, hyperplaneProjections).invoke();
+        new RPTree.ProjectionTask(corpusMatrix, permutation, low, high, sparseVector, sparseProjections).invoke();
+        for (int i = 0; i < size; i++) {
+            float[] xVec = corpusMatrix[permutation[i]];
+            boolean inRange = i >= low && i < high;
+            assertEquals(inRange ? Utils.dot(direction, xVec) : 0.0f, hyperplaneProjections[i]);
+            assertEquals(inRange ? sparseVector.dot(xVec) : 0.0f, sparseProjections[i]);
+        }
+    }
+
+    @Test
+    public void testSparseVectorDot() {
+
+        // Both modes must match the dense dot product with the normalized vector
+        Random random = new Random(23);
+        int[] indices = {0, 3, 4, 9, 12, 15};
+        float[] signValues = {1.0f, -1.0f, -1.0f, 1.0f, -1.0f, 1.0f};
+        float[] gaussianValues = new float[indices.length];
+        for (int i = 0; i < indices.length; i++) {
+            gaussianValues[i] = (float) random.nextGaussian();
+        }
+        RPTree.SparseVector signVector = new RPTree.SparseVector(indices, signValues, true);
+        RPTree.SparseVector gaussianVector = new RPTree.SparseVector(indices, gaussianValues, false);
+
+        for (int trial = 0; trial < 20; trial++) {
+            float[] xVec = new float[16];
+            for (int j = 0; j < xVec.length; j++) {
+                xVec[j] = (float) random.nextGaussian();
+            }
+            assertEquals(denseDot(indices, signValues, xVec), signVector.dot(xVec), 1e-5f);
+            assertEquals(denseDot(indices, gaussianValues, xVec), gaussianVector.dot(xVec), 1e-5f);
+        }
+    }
+
+    private static float denseDot(int[] indices, float[] values, float[] xVec) {
+        // Dot product of xVec and the unit vector in the direction of the sparse vector
+        float[] aVec = new float[xVec.length];
+        double norm = 0.0;
+        for (int i = 0; i < indices.length; i++) {
+            aVec[indices[i]] = values[i];
+            norm += values[i] * values[i];
+        }
+        double dotProduct = 0.0;
+        for (int j = 0; j < xVec.length; j++) {
+            dotProduct += aVec[j] * xVec[j];
+        }
+        return (float) (dotProduct / Math.sqrt(norm));
+    }
+
+    @Test
+    public void testSpillTree() {
+
+        float[][] corpusMatrix = randomCorpus(500, 600, 8, new Random(31));
+        for (Tree tree : allTrees(20)) {
+            tree.setSpillFraction(0.05f);
+            tree.fit(Arrays.copyOf(corpusMatrix, 500));
+
+            // Every point is stored at least once, and the points of each leaf are within the spill margins
+            // of the splits on their path
+            int[] counts = checkSubtree(tree, 0, new ArrayDeque<>(), corpusMatrix, new int[600]);
+            int spilled = -1;
+            for (int cIndex = 0; cIndex < 500; cIndex++) {
+                assertTrue(counts[cIndex] >= 1);
+                if (counts[cIndex] > 1) {
+                    spilled = cIndex;
+                }
+            }
+            assertTrue(spilled >= 0);
+
+            // The points of a spilling node within the margin of its split are stored in both children, and both
+            // children hold fewer points than the node
+            for (int node = 0; node < tree.getNoNodes(); node++) {
+                if (tree.isLeaf(node) || tree.getSpillMargin(node) == 0.0f) {
+                    continue;
+                }
+                Set<Integer> points = subtreePoints(tree, node);
+                Set<Integer> leftPoints = subtreePoints(tree, tree.getLeftChild(node));
+                Set<Integer> rightPoints = subtreePoints(tree, tree.getRightChild(node));
+                assertTrue(leftPoints.size() < points.size());
+                assertTrue(rightPoints.size() < points.size());
+                for (int cIndex : points) {
+                    float projection = tree.project(node, corpusMatrix[cIndex]);
+                    if (projection >= tree.getSplitValue(node) - tree.getSpillMargin(node)
+                            && projection < tree.getSplitValue(node) + tree.getSpillMargin(node)) {
+                        assertTrue(leftPoints.contains(cIndex));
+                        assertTrue(rightPoints.contains(cIndex));
+                    }
+                }
+            }
+
+            // Inserted points are routed down both children wherever they are within the spill margin, so after
+            // leaves have been split, a copy of a spilled point is stored in the same leaves as the point
+            for (int cIndex = 500; cIndex < 600; cIndex++) {
+                corpusMatrix[cIndex] = corpusMatrix[cIndex == 599 ? spilled : cIndex - 500].clone();
+                tree.insert(cIndex, corpusMatrix);
+            }
+            checkSubtree(tree, 0, new ArrayDeque<>(), corpusMatrix, new int[600]);
+            assertEquals(leavesOf(tree, spilled), leavesOf(tree, 599));
+            assertTrue(leavesOf(tree, 599).size() > 1);
+
+            // Removing a point deletes all of its entries
+            tree.remove(spilled, corpusMatrix[spilled]);
+            assertTrue(leavesOf(tree, spilled).isEmpty());
+            assertArrayEquals(range(0, 600, spilled), sorted(tree.getLeafOrder()));
+        }
+    }
+
+    @Test
+    public void testHyperplaneDirections() {
+
+        // The variance of the sample is largest along dimension 2
+        Random random = new Random(41);
+        float[][] stretched = new float[1000][6];
+        for (float[] xVec : stretched) {
+            for (int j = 0; j < 6; j++) {
+                xVec[j] = (float) random.nextGaussian() * (j == 2 ? 10.0f : 1.0f);
+            }
+        }
+        float[] principal = HyperplaneTree.principalDirection(stretched);
+        assertTrue(Math.abs(principal[2]) > 0.99f);
+
+        // Two clusters around 5 and -5 on dimension 0 are separated by the hyperplane between the centroids
+        float[][] clusters = new float[400][6];
+        for (int i = 0; i < clusters.length; i++) {
+            for (int j = 0; j < 6; j++) {
+                clusters[i][j] = (float) random.nextGaussian() * 0.5f + (j == 0 ? (i < 200 ? 5.0f : -5.0f) : 0.0f);
+            }
+        }
+        float[] twoMeans = HyperplaneTree.twoMeansDirection(clusters);
+        float sign = Math.signum(Utils.dot(twoMeans, clusters[0]));
+        for (int i = 0; i < clusters.length; i++) {
+            float projection = Utils.dot(twoMeans, clusters[i]);
+            assertTrue(i < 200 ? sign * projection > 0.0f : sign * projection < 0.0f);
+        }
+
+        // A constant sample has no direction, and a node of equal points becomes a leaf
+        float[][] constant = new float[100][6];
+        for (float[] xVec : constant) {
+            Arrays.fill(xVec, 0.25f);
+        }
+        assertNull(HyperplaneTree.principalDirection(constant));
+        assertNull(HyperplaneTree.twoMeansDirection(constant));
+        for (Tree tree : new Tree[]{new HyperplaneTree(10, false), new HyperplaneTree(10, true)}) {
+            tree.fit(constant);
+            assertTrue(tree.isLeaf(0));
+            assertEquals(100, tree.search(constant[0]).size());
+        }
+    }
+
+}
@@ -129,6 +129,23 @@ public class UtilsTest {
         assertEquals(0.0f, result3, 0.0001f);
     }
 
+    @Test
+    public void sparseDotTest() {
+        float[] aVec = {1.0f, 2.0f, 3.0f, 4.0f};
+        int[] indices = {1, 3};
+        float[] values = {6.0f, 8.0f};
+
+        // Expected dot product: 2*6 + 4*8 = 12 + 32 = 44
+        assertEquals(44.0f, Utils.sparseDot(aVec, indices, values), 0.0001f);
+
+        // Values 1 at components 0 and 2, and -1 at component 3: 1 + 3 - 4 = 0
+        int[] signedIndices = {0, 2, 3};
+        assertEquals(0.0f, Utils.signedSum(aVec, signedIndices, 2), 0.0001f);
+
+        // Only negative components: -2 - 4 = -6
+        assertEquals(-6.0f, Utils.signedSum(aVec, indices, 0), 0.0001f);
+    }
+
     @Test
     public void testMagnitude() {
         float[] aVec = {3.0f, 4.0f};  // {3, 4} forms a 3-4-5 right triangle
@@ -160,6 +177,27 @@ public class UtilsTest {
         assertArrayEquals(new float[]{1.0f * invSqrt14, 2.0f * invSqrt14, 3.0f * invSqrt14}, result2, 0.0001f);
     }
 
+    @Test
+    public void testFastHadamardTransform() {
+        float[] aVec = {1.0f, 0.0f, 1.0f, 0.0f};
+        Utils.fastHadamardTransform(aVec);
+
+        // Expected: H_4 * {1, 0, 1, 0} = {2, 2, 0, 0}
+        assertArrayEquals(new float[]{2.0f, 2.0f, 0.0f, 0.0f}, aVec, 0.0001f);
+
+        float[] aVec2 = {1.0f, 2.0f, 3.0f, 4.0f, 5.0f, 6.0f, 7.0f, 8.0f};
+        Utils.fastHadamardTransform(aVec2);
+
+        // Expected: first component is the sum, the rest follow the Sylvester construction of H_8
+        assertArrayEquals(new float[]{36.0f, -4.0f, -8.0f, 0.0f, -16.0f, 0.0f, 0.0f, 0.0f}, aVec2, 0.0001f);
+
+        // Applying the transform twice scales the vector by its length
+        float[] aVec3 = {0.5f, -1.0f};
+        Utils.fastHadamardTransform(aVec3);
+        Utils.fastHadamardTransform(aVec3);
+        assertArrayEquals(new float[]{1.0f, -2.0f}, aVec3, 0.0001f);
+    }
+
     @Test
     public void testMean() {
         float[] array1 = {1.0f, 2.0f, 3.0f, 4.0f, 5.0f};
@@ -250,6 +288,30 @@ public class UtilsTest {
         assertEquals(0.66666f, result4, 0.0001f);
     }
 
+    @Test
+    public void testSelect() {
+        Random random = new Random(42);
+        for (int size = 1; size <= 50; size++) {
+            float[] array = new float[size];
+            for (int i = 0; i < size; i++) {
+                // Few distinct values to include duplicates
+                array[i] = random.nextInt(10);
+            }
+            float[] sorted = Arrays.copyOf(array, size);
+            Arrays.sort(sorted);
+
+            int position = random.nextInt(size);
+            assertEquals(sorted[position], Utils.select(array, 0, size, position), 0.0f);
+            for (int i = 0; i < size; i++) {
+                if (i < position) {
+                    assertTrue(array[i] <= array[position]);
+                } else {
+                    assertTrue(array[i] >= array[position]);
+                }
+            }
+        }
+    }
+
     @Test
     public void testCalculateSplit() {
         float[] array1 = {0.0f, 0.0f, 0.0f, 1.0f, 1.0f};